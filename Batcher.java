@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class Batcher collects items bound for the same destination and hands them
+ * on in batches, so that one remote call carries many items.
+ *
+ * A batch is handed on as soon as it holds the maximum number of items, or
+ * when the time window that started with its first item has passed, whichever
+ * comes first. No item waits longer than the window. A full batch is handed
+ * on by the thread which filled it; a batch whose window ran out is handed on
+ * by the executor. A batch the executor refuses is given back to the sink
+ * with rejected, so that its items are not silently dropped.
+ *
+ * @param <T>
+ *            Item type.
+ */
+public class Batcher<T> {
+
+	/**
+	 * Interface Sink receives the batches.
+	 *
+	 * @param <T>
+	 *            Item type.
+	 */
+	public interface Sink<T> {
+
+		/**
+		 * Sends a batch of items to a destination.
+		 *
+		 * @param destination
+		 *            Destination of the items.
+		 * @param items
+		 *            Items, in the order they were added.
+		 */
+		public void flush(String destination, List<T> items);
+
+		/**
+		 * Receives a batch whose window ran out but which the executor
+		 * refused to hand on, such as after it was shut down.
+		 *
+		 * @param destination
+		 *            Destination of the items.
+		 * @param items
+		 *            Items, in the order they were added.
+		 */
+		public void rejected(String destination, List<T> items);
+	}
+
+	/**
+	 * Class Batch is the items collected so far for one destination.
+	 */
+	private class Batch implements Runnable {
+
+		private final String destination;
+
+		// Guarded by this batch's lock.
+		private ArrayList<T> items;
+		private boolean scheduled;
+
+		Batch(String destination) {
+			this.destination = destination;
+			this.items = new ArrayList<T>(maxSize);
+		}
+
+		/**
+		 * Hands on what has been collected when the window runs out.
+		 */
+		public void run() {
+			ArrayList<T> full;
+			synchronized (this) {
+				scheduled = false;
+				if (items.isEmpty()) {
+					return;
+				}
+				full = items;
+				items = new ArrayList<T>(maxSize);
+			}
+			hand(full);
+		}
+
+		private void hand(final ArrayList<T> full) {
+			batches.incrementAndGet();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						sink.flush(destination, full);
+					}
+				});
+			} catch (RejectedExecutionException exc) {
+				sink.rejected(destination, full);
+			}
+		}
+	}
+
+	private final int maxSize;
+	private final long window;
+	private final ScheduledExecutorService timer;
+	private final Executor executor;
+	private final Sink<T> sink;
+
+	private final ConcurrentHashMap<String, Batch> pending = new ConcurrentHashMap<String, Batch>();
+
+	private final AtomicLong items = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	/**
+	 * Creates a new batcher.
+	 *
+	 * @param maxSize
+	 *            Maximum number of items in one batch. 1 turns batching off.
+	 * @param window
+	 *            Longest time, in milliseconds, an item waits for its batch
+	 *            to fill.
+	 * @param timer
+	 *            Timer on which the windows run.
+	 * @param executor
+	 *            Executor which hands on the batches whose window ran out.
+	 * @param sink
+	 *            Receiver of the batches.
+	 *
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if maxSize is not positive
+	 *                or window is negative.
+	 */
+	public Batcher(int maxSize, long window, ScheduledExecutorService timer,
+			Executor executor, Sink<T> sink) {
+		if (maxSize <= 0 || window < 0) {
+			throw new IllegalArgumentException("Batcher: size " + maxSize
+					+ " must be positive and window " + window
+					+ " must not be negative.");
+		}
+		this.maxSize = maxSize;
+		this.window = window;
+		this.timer = timer;
+		this.executor = executor;
+		this.sink = sink;
+	}
+
+	/**
+	 * Adds an item for a destination.
+	 *
+	 * @param destination
+	 *            Destination of the item.
+	 * @param item
+	 *            Item.
+	 */
+	public void add(String destination, T item) {
+		items.incrementAndGet();
+		if (maxSize == 1) {
+			batches.incrementAndGet();
+			sink.flush(destination, Collections.singletonList(item));
+			return;
+		}
+		Batch batch = pending.get(destination);
+		if (batch == null) {
+			Batch fresh = new Batch(destination);
+			batch = pending.putIfAbsent(destination, fresh);
+			if (batch == null) {
+				batch = fresh;
+			}
+		}
+		ArrayList<T> full = null;
+		synchronized (batch) {
+			batch.items.add(item);
+			if (batch.items.size() >= maxSize) {
+				full = batch.items;
+				batch.items = new ArrayList<T>(maxSize);
+			} else if (!batch.scheduled) {
+				batch.scheduled = true;
+				timer.schedule(batch, window, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (full != null) {
+			batches.incrementAndGet();
+			sink.flush(destination, full);
+		}
+	}
+
+	/**
+	 * Forgets the destinations not in the given collection, such as offices
+	 * which are no longer neighbors. Items still waiting for them are handed
+	 * on at once.
+	 *
+	 * @param destinations
+	 *            Destinations to keep.
+	 */
+	public void retain(Collection<String> destinations) {
+		for (String destination : pending.keySet()) {
+			if (!destinations.contains(destination)) {
+				Batch batch = pending.remove(destination);
+				if (batch != null) {
+					batch.run();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of items added so far.
+	 */
+	public long items() {
+		return items.get();
+	}
+
+	/**
+	 * Returns the number of batches handed on so far.
+	 */
+	public long batches() {
+		return batches.get();
+	}
+}
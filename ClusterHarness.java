@@ -0,0 +1,319 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class ClusterHarness runs many GPS offices in one process, bound in an
+ * InMemoryDirectory instead of a Registry Server, so that routing,
+ * acknowledgements and rerouting can be exercised at scale on one machine.
+ * Offices call each other through proxies which can inject faults: a killed
+ * office refuses every call with a ConnectException, as a dead process does,
+ * and a slow office delays every call made to it.
+ *
+ * The offices are laid out on a square grid, 10 units apart with some jitter.
+ * Every office claims its own office id (see OfficeId), so at most 8192
+ * offices can run at once; the harness refuses to start more. Every office
+ * has its own threads, so the harness lowers the thread counts and the
+ * forwarding delay unless they are set.
+ *
+ * Usage: java ClusterHarness offices count rate offices = Number of offices
+ * count = Number of packages rate = Target packages per second, 0 for as fast
+ * as possible
+ *
+ * Faults are set with system properties: ClusterHarness.kill (number of
+ * offices killed), ClusterHarness.killAfter (milliseconds into the run),
+ * ClusterHarness.slow (number of slow offices) and ClusterHarness.latency
+ * (milliseconds added to every call to a slow office). The load itself is
+ * tuned with the LoadGenerator properties.
+ */
+public class ClusterHarness {
+
+	private static final String KILL_PROPERTY = "ClusterHarness.kill";
+	private static final String KILL_AFTER_PROPERTY = "ClusterHarness.killAfter";
+	private static final String SLOW_PROPERTY = "ClusterHarness.slow";
+	private static final String LATENCY_PROPERTY = "ClusterHarness.latency";
+
+	private static final double SPACING = 10.0;
+
+	/**
+	 * Class Fault is what is wrong with one office.
+	 */
+	private static class Fault {
+		volatile boolean dead;
+		volatile long latency;
+	}
+
+	/**
+	 * Class FaultyDirectory hands out every bound object behind a proxy which
+	 * applies the object's faults to each call.
+	 */
+	private class FaultyDirectory extends InMemoryDirectory {
+
+		protected Remote wrap(final String name, final Remote object) {
+			final Fault fault = fault(name);
+			return (Remote) Proxy.newProxyInstance(object.getClass()
+					.getClassLoader(), object.getClass().getInterfaces(),
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+							if (method.getDeclaringClass() != Object.class) {
+								if (fault.dead) {
+									throw new ConnectException("Office "
+											+ name + " is down");
+								}
+								long latency = fault.latency;
+								if (latency > 0) {
+									Thread.sleep(latency);
+								}
+							}
+							try {
+								return method.invoke(object, args);
+							} catch (InvocationTargetException exc) {
+								throw exc.getCause();
+							}
+						}
+					});
+		}
+	}
+
+	private final FaultyDirectory directory = new FaultyDirectory();
+	private final Map<String, GPSOffice> offices = new ConcurrentHashMap<String, GPSOffice>();
+	private final Map<String, Fault> faults = new ConcurrentHashMap<String, Fault>();
+
+	/**
+	 * Creates a new harness with no offices.
+	 */
+	public ClusterHarness() {
+		defaultProperty("GPSOffice.delay", "10");
+		defaultProperty("GPSOffice.workers", "2");
+		defaultProperty("GPSOffice.events.threads", "1");
+		defaultProperty("GPSOffice.ack.threads", "1");
+	}
+
+	/**
+	 * Returns the directory the offices are bound in.
+	 */
+	public Directory directory() {
+		return directory;
+	}
+
+	/**
+	 * Starts offices named office0, office1, ... on a square grid.
+	 *
+	 * @param count
+	 *            Number of offices.
+	 * @param seed
+	 *            Seed of the jitter.
+	 *
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if the offices already
+	 *                running and the new ones would be more than there are
+	 *                office ids.
+	 * @exception Exception
+	 *                Thrown if an office could not be started.
+	 */
+	public void start(int count, long seed) throws Exception {
+		if (count < 0 || offices.size() + count > OfficeId.IDS) {
+			throw new IllegalArgumentException("ClusterHarness: cannot run "
+					+ (offices.size() + count) + " offices, at most "
+					+ OfficeId.IDS + " have office ids");
+		}
+		Random random = new Random(seed);
+		int side = (int) Math.ceil(Math.sqrt(count));
+		for (int i = 0; i < count; i++) {
+			addOffice("office" + i, (i % side + random.nextDouble() * 0.5)
+					* SPACING, (i / side + random.nextDouble() * 0.5) * SPACING);
+		}
+	}
+
+	/**
+	 * Starts one office.
+	 *
+	 * @param name
+	 *            Name of the office.
+	 * @param x
+	 *            X coordinate of the office.
+	 * @param y
+	 *            Y coordinate of the office.
+	 *
+	 * @exception Exception
+	 *                Thrown if the office could not be started.
+	 */
+	public synchronized GPSOffice addOffice(String name, double x, double y)
+			throws Exception {
+		faults.put(name, new Fault());
+		GPSOffice office = new GPSOffice(directory, name, x, y, -1);
+		offices.put(name, office);
+		return office;
+	}
+
+	/**
+	 * Kills an office: it stops at once and every call to it fails, but it
+	 * stays bound, so the other offices only find out when they call it.
+	 *
+	 * @param name
+	 *            Name of the office.
+	 */
+	public void kill(String name) {
+		fault(name).dead = true;
+		GPSOffice office = offices.remove(name);
+		if (office != null) {
+			office.shutdown();
+		}
+	}
+
+	/**
+	 * Takes an office out cleanly: it is unbound first, so the other offices
+	 * are told, and then stopped.
+	 *
+	 * @param name
+	 *            Name of the office.
+	 *
+	 * @exception Exception
+	 *                Thrown if the office was not bound.
+	 */
+	public void leave(String name) throws Exception {
+		directory.unbind(name);
+		GPSOffice office = offices.remove(name);
+		if (office != null) {
+			office.shutdown();
+		}
+	}
+
+	/**
+	 * Delays every call to an office.
+	 *
+	 * @param name
+	 *            Name of the office.
+	 * @param millis
+	 *            Delay in milliseconds, 0 for none.
+	 */
+	public void latency(String name, long millis) {
+		fault(name).latency = millis;
+	}
+
+	/**
+	 * Returns the names of the offices still running.
+	 */
+	public List<String> names() {
+		return new ArrayList<String>(offices.keySet());
+	}
+
+	/**
+	 * Stops every office and the directory.
+	 */
+	public void close() {
+		for (GPSOffice office : offices.values()) {
+			office.shutdown();
+		}
+		offices.clear();
+		directory.close();
+	}
+
+	private Fault fault(String name) {
+		Fault fault = faults.get(name);
+		if (fault == null) {
+			faults.putIfAbsent(name, new Fault());
+			fault = faults.get(name);
+		}
+		return fault;
+	}
+
+	private static void defaultProperty(String key, String value) {
+		if (System.getProperty(key) == null) {
+			System.setProperty(key, value);
+		}
+	}
+
+	/**
+	 * Cluster harness main program.
+	 *
+	 * @param String
+	 *            [] args
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			usage();
+		}
+		int size;
+		int count;
+		double rate;
+		try {
+			size = Integer.parseInt(args[0]);
+			count = Integer.parseInt(args[1]);
+			rate = Double.parseDouble(args[2]);
+		} catch (NumberFormatException exc) {
+			System.err.println(exc.getMessage() + " cannot be parsed");
+			usage();
+			return;
+		}
+
+		if (size < 1 || size > OfficeId.IDS) {
+			System.err.println("<offices> must be between 1 and "
+					+ OfficeId.IDS);
+			usage();
+		}
+
+		final ClusterHarness harness = new ClusterHarness();
+		long begin = System.currentTimeMillis();
+		harness.start(size, 42L);
+		System.out.println("Started " + size + " offices in "
+				+ (System.currentTimeMillis() - begin) + " ms");
+
+		final Random random = new Random(7L);
+		List<String> names = harness.names();
+		int slow = Integer.getInteger(SLOW_PROPERTY, 0);
+		long latency = Long.getLong(LATENCY_PROPERTY, 50L);
+		for (int i = 0; i < slow && i < names.size(); i++) {
+			harness.latency(names.get(random.nextInt(names.size())), latency);
+		}
+
+		final int kill = Integer.getInteger(KILL_PROPERTY, 0);
+		final long killAfter = Long.getLong(KILL_AFTER_PROPERTY, 1000L);
+		if (kill > 0) {
+			Thread killer = new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(killAfter);
+					} catch (InterruptedException exc) {
+						return;
+					}
+					List<String> alive = harness.names();
+					for (int i = 0; i < kill && !alive.isEmpty(); i++) {
+						String name = alive.remove(random.nextInt(alive
+								.size()));
+						harness.kill(name);
+						System.out.println("Killed " + name);
+					}
+				}
+			};
+			killer.setDaemon(true);
+			killer.start();
+		}
+
+		new LoadGenerator(harness.directory(), count, rate).run();
+		harness.close();
+		System.exit(0);
+	}
+
+	/**
+	 * Print a usage message and exit.
+	 */
+	private static void usage() {
+		System.err.println("Usage: java ClusterHarness <offices> <count> <rate>");
+		System.err.println("<offices> = Number of offices (integer), at most "
+				+ OfficeId.IDS);
+		System.err.println("<count> = Number of packages (integer)");
+		System.err
+				.println("<rate> = Packages per second (double), 0 for no limit");
+		System.exit(1);
+	}
+}
@@ -1,77 +1,24 @@
-import edu.rit.ds.RemoteEventListener;
-import edu.rit.ds.registry.NotBoundException;
-import edu.rit.ds.registry.RegistryEvent;
-import edu.rit.ds.registry.RegistryEventFilter;
-import edu.rit.ds.registry.RegistryEventListener;
 import edu.rit.ds.registry.RegistryProxy;
 
-import java.io.Serializable;
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
-import java.util.EventListener;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
- * Class Customer contains a customer request to deliver a package in the GPS
- * tracking system. Customer request is uniquely identified by a tracking number
- * which is the current timestamp in the system. Customer request also contains
- * the X and Y coordinates of the destination to which the packet to be
- * delivered.
+ * Class Customer sends a package through the GPS tracking system with a
+ * GPSClient and prints the package's progress. The originating office gives
+ * the package a unique tracking number and carries it through the system as a
+ * Packet, together with the X and Y coordinates of the destination to which
+ * the packet is to be delivered.
  * 
  * Usage: java Customer host port name X Y host = Registry Server's host port =
  * Registry Server's port name = Name of the originating node X = X coordinate
  * of the destination Y = Y coordinate of the destination
+ * 
+ * With -load as the first argument, Customer runs the load generator instead;
+ * see class LoadGenerator.
  */
-public class Customer extends Thread implements Serializable {
-
-	/**
-	 * This customer package's trackingnumber.
-	 */
-	public final long trackingnumber;
-
-	/**
-	 * This customer package's destination X coordinate.
-	 */
-	public final Double X;
-
-	/**
-	 * This customer package's destination Y coordinate.
-	 */
-	public final Double Y;
-
-	/**
-	 * This customer package's origin node name.
-	 */
-	public final String originalNode;
-
-	/**
-	 * The object of the RegistryProxy.
-	 */
-	private static RegistryProxy registry;
-	private static RemoteEventListener<NodeEvent> nodeListener;
-	private static long trackingNumber;
-
-	/**
-	 * Creates a new customer request for packet delivery.
-	 * 
-	 * @param trackingnumber
-	 *            Tracking number
-	 * @param X
-	 *            Destination X coordinate
-	 * @param Y
-	 *            Destination Y coordinate
-	 * @param originNode
-	 *            Originating node name.
-	 */
-	Customer(long trackingnumber, Double X, Double Y, String originalNode) {
-		this.trackingnumber = trackingnumber;
-		this.X = X;
-		this.Y = Y;
-		this.originalNode = originalNode;
-
-	}
+public class Customer {
 
 	/**
 	 * Customer main program.
@@ -81,6 +28,11 @@ public class Customer extends Thread implements Serializable {
 	 */
 	public static void main(String[] args) throws Exception {
 
+		if (args.length > 0 && args[0].equals("-load")) {
+			LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+
 		// Parse Command line Arguments
 		if (args.length != 5)
 			usage();
@@ -90,44 +42,24 @@ public class Customer extends Thread implements Serializable {
 		Double x = parseDouble(args[3]);
 		Double y = parseDouble(args[4]);
 
-		// Look up node ID in the Registry Server and originate the query.
-		registry = new RegistryProxy(host, port);
-		GPSOfficeRef node = (GPSOfficeRef) registry.lookup(name);
-		trackingNumber = node.giveTrackingNumber();
-
-		/**
-		 * Calls the Customer constructor and creates a new customer request
-		 * with unique trackingnumber.
-		 */
-		final Customer customer = new Customer(trackingNumber, x, y, name);
-		
-
-		/**
-		 * Export a remote event listener object for receiving notifications
-		 * about arrivals from GPSOffice objects.
-		 */
-		nodeListener = new RemoteEventListener<NodeEvent>() {
-			public void report(long seqnum, NodeEvent event) {
-				System.out.println(event.officename);
-				if (event.delivery == 2 || event.delivery == 4) {
-					System.exit(1);
+		// Originate the query; the office gives it a unique trackingnumber,
+		// and every event about the package is printed.
+		GPSClient client = new GPSClient(new RegistryDirectory(
+				new RegistryProxy(host, port)), 1);
+		client.submit(name, x, y, new Consumer<NodeEvent>() {
+			public void accept(NodeEvent event) {
+				System.out.println(event);
+			}
+		}).whenComplete(new BiConsumer<NodeEvent, Throwable>() {
+			public void accept(NodeEvent event, Throwable exc) {
+				if (exc != null && !(exc instanceof PacketLostException)) {
+					System.err.println(exc);
 				}
-
+				System.exit(1);
 			}
-		};
-		UnicastRemoteObject.exportObject(nodeListener, 0);
-		
-		node.forwardPacket(customer, nodeListener);
+		});
 	}
 	
-	/**
-	 * Gets the packet's tracking number from the GPS office.
-	 * @return long
-	 */
-	public long getTrackingNumber() {
-		return trackingnumber;
-	}
-
 	/**
 	 * Print a usage message and exit.
 	 */
@@ -138,6 +70,8 @@ public class Customer extends Thread implements Serializable {
 		System.err.println("<name> = Name of the originating node");
 		System.err.println("<X> = X coordinate of the destination (double)");
 		System.err.println("<Y> = Y coordinate of the destination (double)");
+		System.err
+				.println("   or: java Customer -load <host> <port> <count> <rate>");
 		System.exit(1);
 	}
 
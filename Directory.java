@@ -0,0 +1,113 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import edu.rit.ds.registry.AlreadyBoundException;
+import edu.rit.ds.registry.NotBoundException;
+
+/**
+ * Interface Directory is the part of the Registry Server that GPS offices and
+ * clients use: listing, looking up and binding objects, and being told when
+ * objects are bound or unbound. RegistryDirectory goes to a Registry Server;
+ * InMemoryDirectory keeps everything in one JVM.
+ */
+public interface Directory {
+
+	/**
+	 * Interface Watcher is told when an object is bound or unbound.
+	 */
+	public interface Watcher {
+
+		/**
+		 * Called when an object is bound.
+		 * 
+		 * @param name
+		 *            Object's name.
+		 */
+		public void bound(String name);
+
+		/**
+		 * Called when an object is unbound.
+		 * 
+		 * @param name
+		 *            Object's name.
+		 */
+		public void unbound(String name);
+	}
+
+	/**
+	 * Returns the names of all bound objects.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public List<String> list() throws RemoteException;
+
+	/**
+	 * Returns the names of the bound objects of the given type.
+	 * 
+	 * @param type
+	 *            Class or interface name.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public List<String> list(String type) throws RemoteException;
+
+	/**
+	 * Returns the object bound under a name.
+	 * 
+	 * @param name
+	 *            Object's name.
+	 * 
+	 * @exception NotBoundException
+	 *                Thrown if no object is bound under the name.
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public Remote lookup(String name) throws NotBoundException,
+			RemoteException;
+
+	/**
+	 * Binds an object under a name.
+	 * 
+	 * @param name
+	 *            Object's name.
+	 * @param object
+	 *            Object.
+	 * 
+	 * @exception AlreadyBoundException
+	 *                Thrown if an object is already bound under the name.
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void bind(String name, Remote object) throws AlreadyBoundException,
+			RemoteException;
+
+	/**
+	 * Unbinds the object bound under a name.
+	 * 
+	 * @param name
+	 *            Object's name.
+	 * 
+	 * @exception NotBoundException
+	 *                Thrown if no object is bound under the name.
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void unbind(String name) throws NotBoundException, RemoteException;
+
+	/**
+	 * Tells a watcher, from now on, when an object of the given type is bound
+	 * or unbound. The watcher is told in the order the changes happen.
+	 * 
+	 * @param type
+	 *            Class or interface name.
+	 * @param watcher
+	 *            Watcher.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void watch(String type, Watcher watcher) throws RemoteException;
+}
@@ -0,0 +1,220 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class EventAggregator turns the stream of node events from every office
+ * into a compact summary printed once per tumbling window: global and hot
+ * office event rates, deliveries, the loss rate, and percentiles of the
+ * end-to-end delivery latency, for the window and since the start.
+ *
+ * Events are counted as they arrive, without a lock, by the threads that
+ * deliver them; the summary is printed by a background thread, which swaps
+ * in a fresh window first. The delivery latency of a package is the time of
+ * its DELIVERED event less the time in its tracking number, so it is only as
+ * good as the agreement between the offices' clocks.
+ *
+ * Optionally a sample of the packages, chosen by tracking number so that all
+ * the events of a sampled package are kept, is also written out event by
+ * event.
+ */
+public class EventAggregator {
+
+	private static final int HOT_OFFICES = 5;
+
+	/**
+	 * Class Window is what was counted in one window.
+	 */
+	private static class Window {
+		final long start = System.currentTimeMillis();
+		final LongAdder[] counts = adders(NodeEvent.Type.values().length);
+		final LongAdder hops = new LongAdder();
+		final Histogram latency = new Histogram();
+		final ConcurrentHashMap<String, LongAdder> offices = new ConcurrentHashMap<String, LongAdder>();
+
+		LongAdder office(String name) {
+			LongAdder count = offices.get(name);
+			if (count == null) {
+				offices.putIfAbsent(name, new LongAdder());
+				count = offices.get(name);
+			}
+			return count;
+		}
+	}
+
+	private final long window;
+	private final double sample;
+	private final PrintStream summary;
+	private final PrintWriter raw;
+
+	private final AtomicReference<Window> current = new AtomicReference<Window>(
+			new Window());
+	private final LongAdder[] totals = adders(NodeEvent.Type.values().length);
+	private final Histogram totalLatency = new Histogram();
+	private final ScheduledExecutorService printer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	/**
+	 * Creates a new aggregator.
+	 *
+	 * @param window
+	 *            Length of a window in milliseconds.
+	 * @param sample
+	 *            Share of the packages whose events are written out, from 0
+	 *            for none to 1 for all.
+	 * @param summary
+	 *            Where the summaries are printed.
+	 * @param raw
+	 *            Where the sampled events are written, or null for nowhere.
+	 */
+	public EventAggregator(long window, double sample, PrintStream summary,
+			PrintWriter raw) {
+		this.window = window;
+		this.sample = raw == null ? 0.0 : sample;
+		this.summary = summary;
+		this.raw = raw;
+	}
+
+	/**
+	 * Starts printing a summary at the end of every window.
+	 */
+	public void start() {
+		printer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				summarize();
+			}
+		}, window, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops printing summaries and flushes the sampled events.
+	 */
+	public void stop() {
+		printer.shutdown();
+		if (raw != null) {
+			synchronized (raw) {
+				raw.flush();
+			}
+		}
+	}
+
+	/**
+	 * Counts an event.
+	 *
+	 * @param event
+	 *            Event.
+	 */
+	public void accept(NodeEvent event) {
+		Window w = current.get();
+		int type = event.type.ordinal();
+		w.counts[type].increment();
+		totals[type].increment();
+		w.office(event.officename).increment();
+		if (event.type == NodeEvent.Type.DELIVERED) {
+			long latency = event.timestamp
+					- TrackingNumberGenerator.timeOf(event.trackingNumber);
+			w.latency.record(latency);
+			totalLatency.record(latency);
+			w.hops.add(event.hops);
+		}
+		if (sample > 0.0 && sampled(event.trackingNumber)) {
+			synchronized (raw) {
+				raw.println(event);
+			}
+		}
+	}
+
+	/**
+	 * Ends the current window and prints its summary.
+	 */
+	void summarize() {
+		Window w = current.getAndSet(new Window());
+		double seconds = Math.max(1L, System.currentTimeMillis() - w.start)
+				/ 1000.0;
+		long events = 0;
+		for (LongAdder count : w.counts) {
+			events += count.sum();
+		}
+		long delivered = w.counts[NodeEvent.Type.DELIVERED.ordinal()].sum();
+		long lost = w.counts[NodeEvent.Type.LOST.ordinal()].sum();
+
+		StringBuilder line = new StringBuilder();
+		line.append(new SimpleDateFormat("HH:mm:ss").format(new Date()));
+		line.append(String.format(" %.0f events/s, %.1f delivered/s, lost %d"
+				+ " (%s)", events / seconds, delivered / seconds, lost,
+				lossRate(delivered, lost)));
+		if (delivered > 0) {
+			line.append(String.format(", latency ms p50 %d p99 %d p99.9 %d"
+					+ " max %d, hops %.2f", w.latency.percentile(0.50),
+					w.latency.percentile(0.99), w.latency.percentile(0.999),
+					w.latency.max(), (double) w.hops.sum() / delivered));
+		}
+		ArrayList<Map.Entry<String, LongAdder>> offices = new ArrayList<Map.Entry<String, LongAdder>>(
+				w.offices.entrySet());
+		Collections.sort(offices, new Comparator<Map.Entry<String, LongAdder>>() {
+			public int compare(Map.Entry<String, LongAdder> a,
+					Map.Entry<String, LongAdder> b) {
+				return Long.compare(b.getValue().sum(), a.getValue().sum());
+			}
+		});
+		if (!offices.isEmpty()) {
+			line.append("; hot");
+			for (int i = 0; i < offices.size() && i < HOT_OFFICES; i++) {
+				line.append(String.format(" %s %.1f/s", offices.get(i)
+						.getKey(), offices.get(i).getValue().sum() / seconds));
+			}
+		}
+		long allDelivered = totals[NodeEvent.Type.DELIVERED.ordinal()].sum();
+		long allLost = totals[NodeEvent.Type.LOST.ordinal()].sum();
+		line.append(String.format("; total delivered %d lost %d (%s)",
+				allDelivered, allLost, lossRate(allDelivered, allLost)));
+		if (allDelivered > 0) {
+			line.append(String.format(" p99 %d ms",
+					totalLatency.percentile(0.99)));
+		}
+		if (raw == null) {
+			summary.println(line);
+			return;
+		}
+		// The sampled events may go to the same stream; finish them first.
+		synchronized (raw) {
+			raw.flush();
+			summary.println(line);
+		}
+	}
+
+	/**
+	 * Returns true if the events of the package with the given tracking
+	 * number are to be written out. The tracking number is hashed, since its
+	 * low bits count packages within one millisecond.
+	 */
+	private boolean sampled(long trackingNumber) {
+		long h = trackingNumber * 0x9E3779B97F4A7C15L;
+		return (h >>> 11) * 0x1.0p-53 < sample;
+	}
+
+	private static String lossRate(long delivered, long lost) {
+		long finished = delivered + lost;
+		return finished == 0 ? "-" : String.format("%.2f%%", 100.0 * lost
+				/ finished);
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+}
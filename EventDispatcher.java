@@ -0,0 +1,310 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.rit.ds.RemoteEventListener;
+
+/**
+ * Class EventDispatcher delivers node events to their listeners in the
+ * background, so that a slow or dead listener never holds up a package.
+ * 
+ * Each listener has its own bounded outbound queue. A listener's queue is
+ * drained by one dispatcher thread at a time, a batch of events per turn, so
+ * the listener sees its events in order. When a queue is full, an ARRIVED or
+ * DEPARTED event is dropped, as the overflow policy says. DELIVERED and LOST
+ * events are never dropped to make room, since the client waits for them; a
+ * queue holding nothing else grows past its capacity instead.
+ * 
+ * A listener that fails a number of times in a row is evicted: its queue is
+ * cleared and later events for it are dropped. An evicted listener is
+ * forgotten after a while, so dead listeners do not pile up, and a listener
+ * that reports again then gets another chance.
+ */
+public class EventDispatcher {
+
+	/**
+	 * Which event to drop when a listener's queue is full.
+	 */
+	public static enum Overflow {
+
+		/**
+		 * Drop the ARRIVED or DEPARTED event being added.
+		 */
+		DROP_NEWEST,
+
+		/**
+		 * Drop the oldest ARRIVED or DEPARTED event in the queue.
+		 */
+		DROP_OLDEST
+	}
+
+	/**
+	 * Class Outbox is the outbound queue of one listener.
+	 */
+	private class Outbox implements Runnable {
+
+		private final RemoteEventListener<NodeEvent> listener;
+		private final ArrayDeque<NodeEvent> queue = new ArrayDeque<NodeEvent>();
+
+		// The following are guarded by this outbox's lock, except failures,
+		// which only the draining thread uses.
+		private boolean scheduled;
+		private boolean closed;
+		private boolean evicted;
+		private long evictedAt;
+		private int failures;
+
+		Outbox(RemoteEventListener<NodeEvent> listener) {
+			this.listener = listener;
+		}
+
+		/**
+		 * Delivers one batch of events, then either schedules the next batch
+		 * or, if the queue is empty, retires this outbox.
+		 */
+		public void run() {
+			ArrayList<NodeEvent> batch = new ArrayList<NodeEvent>(batchSize);
+			synchronized (this) {
+				while (batch.size() < batchSize && !queue.isEmpty()) {
+					batch.add(queue.poll());
+				}
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				try {
+					listener.report(0, batch.get(i));
+					delivered.incrementAndGet();
+					failures = 0;
+				} catch (RemoteException exc) {
+					dropped.incrementAndGet();
+					if (++failures >= maxFailures) {
+						evict();
+						return;
+					}
+				} catch (RuntimeException exc) {
+					dropped.incrementAndGet();
+				}
+			}
+			synchronized (this) {
+				if (queue.isEmpty()) {
+					scheduled = false;
+					closed = true;
+					outboxes.remove(listener, this);
+				} else {
+					schedule();
+				}
+			}
+		}
+
+		/**
+		 * Hands this outbox to a dispatcher thread. Once the dispatcher has
+		 * been shut down, the outbox is closed instead and its events are
+		 * dropped. The caller holds this outbox's lock.
+		 */
+		void schedule() {
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException exc) {
+				dropped.addAndGet(queue.size());
+				queue.clear();
+				scheduled = false;
+				closed = true;
+				outboxes.remove(listener, this);
+			}
+		}
+
+		private void evict() {
+			synchronized (this) {
+				dropped.addAndGet(queue.size());
+				queue.clear();
+				scheduled = false;
+				closed = true;
+				evicted = true;
+				evictedAt = System.currentTimeMillis();
+			}
+			evictions.incrementAndGet();
+		}
+	}
+
+	private final ExecutorService workers;
+	private final int queueCapacity;
+	private final int batchSize;
+	private final Overflow overflow;
+	private final int maxFailures;
+	private final long evictedTtl;
+
+	/**
+	 * Outbound queues by listener. An evicted listener keeps its closed
+	 * outbox here for evictedTtl milliseconds so that later events for it are
+	 * dropped.
+	 */
+	private final ConcurrentHashMap<RemoteEventListener<NodeEvent>, Outbox> outboxes = new ConcurrentHashMap<RemoteEventListener<NodeEvent>, Outbox>();
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong nextSweep = new AtomicLong();
+
+	/**
+	 * Creates a new event dispatcher.
+	 * 
+	 * @param threads
+	 *            Number of dispatcher threads.
+	 * @param queueCapacity
+	 *            Maximum number of events queued for one listener.
+	 * @param batchSize
+	 *            Maximum number of events delivered to one listener per turn.
+	 * @param overflow
+	 *            Which event to drop when a listener's queue is full.
+	 * @param maxFailures
+	 *            Number of failed deliveries in a row after which a listener
+	 *            is evicted.
+	 * @param evictedTtl
+	 *            Milliseconds after which an evicted listener is forgotten.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if a number is not positive.
+	 */
+	public EventDispatcher(int threads, int queueCapacity, int batchSize,
+			Overflow overflow, int maxFailures, long evictedTtl) {
+		if (threads <= 0 || queueCapacity <= 0 || batchSize <= 0
+				|| maxFailures <= 0 || evictedTtl <= 0) {
+			throw new IllegalArgumentException(
+					"Event dispatcher: threads, queue capacity, batch size,"
+							+ " failures and eviction time must be positive.");
+		}
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.queueCapacity = queueCapacity;
+		this.batchSize = batchSize;
+		this.overflow = overflow;
+		this.maxFailures = maxFailures;
+		this.evictedTtl = evictedTtl;
+	}
+
+	/**
+	 * Queues an event for delivery to a listener and returns at once.
+	 * 
+	 * @param listener
+	 *            Listener to report to.
+	 * @param event
+	 *            Event to report.
+	 */
+	public void report(RemoteEventListener<NodeEvent> listener, NodeEvent event) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		for (;;) {
+			Outbox outbox = outboxes.get(listener);
+			if (outbox == null) {
+				Outbox fresh = new Outbox(listener);
+				outbox = outboxes.putIfAbsent(listener, fresh);
+				if (outbox == null) {
+					outbox = fresh;
+				}
+			}
+			synchronized (outbox) {
+				if (outbox.closed) {
+					if (outbox.evicted && now - outbox.evictedAt < evictedTtl) {
+						dropped.incrementAndGet();
+						return;
+					}
+					// Retired while we got hold of it, or evicted long enough
+					// ago; take a fresh one.
+					outboxes.remove(listener, outbox);
+					continue;
+				}
+				if (outbox.queue.size() >= queueCapacity
+						&& !makeRoom(outbox.queue, event)) {
+					dropped.incrementAndGet();
+					return;
+				}
+				outbox.queue.add(event);
+				if (!outbox.scheduled) {
+					outbox.scheduled = true;
+					outbox.schedule();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes room in a full queue for an event by dropping an ARRIVED or
+	 * DEPARTED event, as the overflow policy says.
+	 * 
+	 * @return False if the event being added is to be dropped instead.
+	 */
+	private boolean makeRoom(ArrayDeque<NodeEvent> queue, NodeEvent event) {
+		boolean last = event.isFinal();
+		if (!last && overflow == Overflow.DROP_NEWEST) {
+			return false;
+		}
+		Iterator<NodeEvent> events = queue.iterator();
+		while (events.hasNext()) {
+			if (!events.next().isFinal()) {
+				events.remove();
+				dropped.incrementAndGet();
+				return true;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Forgets the listeners evicted more than evictedTtl milliseconds ago.
+	 * Runs at most once per evictedTtl, on the thread that gets there first.
+	 */
+	private void sweep(long now) {
+		long next = nextSweep.get();
+		if (now < next || !nextSweep.compareAndSet(next, now + evictedTtl)) {
+			return;
+		}
+		for (Outbox outbox : outboxes.values()) {
+			synchronized (outbox) {
+				if (outbox.evicted && now - outbox.evictedAt >= evictedTtl) {
+					outboxes.remove(outbox.listener, outbox);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the dispatcher threads. Events not yet delivered are dropped.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of events delivered so far.
+	 */
+	public long delivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * Returns the number of events dropped so far, because a queue was full,
+	 * a delivery failed or the listener was evicted.
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of listeners evicted so far.
+	 */
+	public long evictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of listeners that currently have an outbound queue.
+	 */
+	public int listeners() {
+		return outboxes.size();
+	}
+}
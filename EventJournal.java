@@ -0,0 +1,296 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Class EventJournal keeps every node event that reaches the Headquarters in
+ * a directory of segment files, so that the history of any package can be
+ * looked up afterwards. Events are only ever appended, as fixed-size binary
+ * records written through memory-mapped segments; when a segment is full
+ * the next one is started.
+ *
+ * Each record holds the number of the package's previous record, and a
+ * TrackingIndex maps each tracking number to its latest record, so a history
+ * is read by one index probe and one record read per event, without
+ * scanning. The index lives outside the heap and is rebuilt from the
+ * segments when the journal is opened. Office names are stored once, in the
+ * file offices, and referred to by number.
+ *
+ * A record is 56 bytes: tracking number, timestamp, X, Y, previous record,
+ * hops, office number and event type. The tracking number is written last,
+ * and a record whose tracking number is 0 marks the end of the journal, so a
+ * record cut short by a crash is never read back.
+ *
+ * Usage: java EventJournal directory trackingNumber... prints the history of
+ * each package from a journal which is not in use.
+ */
+public class EventJournal {
+
+	private static final int RECORD = 56;
+	private static final int TIMESTAMP = 8;
+	private static final int X = 16;
+	private static final int Y = 24;
+	private static final int PREVIOUS = 32;
+	private static final int HOPS = 40;
+	private static final int OFFICE = 44;
+	private static final int TYPE = 48;
+
+	private static final NodeEvent.Type[] TYPES = NodeEvent.Type.values();
+
+	private final File directory;
+	private final int perSegment;
+	private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private final TrackingIndex index;
+
+	private final ArrayList<String> officeNames = new ArrayList<String>();
+	private final HashMap<String, Integer> officeIds = new HashMap<String, Integer>();
+	private final Writer officeFile;
+
+	/**
+	 * Number of records written, and the number of the next one.
+	 */
+	private long records;
+
+	/**
+	 * Opens the journal in a directory, creating it if need be, and rebuilds
+	 * its index.
+	 *
+	 * @param directory
+	 *            Directory of the journal.
+	 * @param segmentBytes
+	 *            Size of a segment file in bytes. A journal must always be
+	 *            opened with the same segment size.
+	 *
+	 * @exception IOException
+	 *                Thrown if the journal could not be opened.
+	 */
+	public EventJournal(File directory, long segmentBytes) throws IOException {
+		if (segmentBytes < RECORD || segmentBytes / RECORD > Integer.MAX_VALUE
+				/ RECORD) {
+			throw new IllegalArgumentException("Event journal: segment size "
+					+ segmentBytes + " is out of range.");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Event journal: cannot create " + directory);
+		}
+		this.directory = directory;
+		this.perSegment = (int) (segmentBytes / RECORD);
+
+		File offices = new File(directory, "offices");
+		if (offices.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					new FileInputStream(offices), StandardCharsets.UTF_8));
+			try {
+				for (String line; (line = in.readLine()) != null;) {
+					officeIds.put(line, officeNames.size());
+					officeNames.add(line);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		officeFile = new OutputStreamWriter(new FileOutputStream(offices, true),
+				StandardCharsets.UTF_8);
+
+		// Map the existing segments and find the end of the journal.
+		while (segment(segments.size()).exists()) {
+			segments.add(map(segments.size()));
+		}
+		records = (long) segments.size() * perSegment;
+		for (int s = segments.size() - 1; s >= 0; s--) {
+			MappedByteBuffer segment = segments.get(s);
+			int low = 0, high = perSegment;
+			// Records are written in order, so the used ones come first.
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (segment.getLong(mid * RECORD) != 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			if (low > 0 || s == 0) {
+				records = (long) s * perSegment + low;
+				break;
+			}
+		}
+
+		index = new TrackingIndex(records / 4);
+		for (long n = 0; n < records; n++) {
+			index.put(buffer(n).getLong(offset(n)), n);
+		}
+	}
+
+	/**
+	 * Appends an event.
+	 *
+	 * @param event
+	 *            Event.
+	 *
+	 * @exception IOException
+	 *                Thrown if a new segment or office name could not be
+	 *                written.
+	 */
+	public synchronized void append(NodeEvent event) throws IOException {
+		long n = records;
+		if (n / perSegment == segments.size()) {
+			if (!segments.isEmpty()) {
+				segments.get(segments.size() - 1).force();
+			}
+			segments.add(map(segments.size()));
+		}
+		MappedByteBuffer segment = buffer(n);
+		int at = offset(n);
+		segment.putLong(at + TIMESTAMP, event.timestamp);
+		segment.putDouble(at + X, event.x);
+		segment.putDouble(at + Y, event.y);
+		segment.putLong(at + PREVIOUS, index.get(event.trackingNumber));
+		segment.putInt(at + HOPS, event.hops);
+		segment.putInt(at + OFFICE, officeId(event.officename));
+		segment.put(at + TYPE, (byte) event.type.ordinal());
+		segment.putLong(at, event.trackingNumber);
+		index.put(event.trackingNumber, n);
+		records = n + 1;
+	}
+
+	/**
+	 * Returns the events of a package, oldest first.
+	 *
+	 * @param trackingNumber
+	 *            Tracking number of the package.
+	 *
+	 * @return Events, none if the package is not in the journal.
+	 */
+	public synchronized List<NodeEvent> history(long trackingNumber) {
+		ArrayList<NodeEvent> events = new ArrayList<NodeEvent>();
+		if (trackingNumber == 0) {
+			return events;
+		}
+		for (long n = index.get(trackingNumber); n >= 0;) {
+			MappedByteBuffer segment = buffer(n);
+			int at = offset(n);
+			events.add(new NodeEvent(TYPES[segment.get(at + TYPE)],
+					trackingNumber, officeNames.get(segment.getInt(at
+							+ OFFICE)), segment.getLong(at + TIMESTAMP),
+					segment.getDouble(at + X), segment.getDouble(at + Y),
+					segment.getInt(at + HOPS)));
+			n = segment.getLong(at + PREVIOUS);
+		}
+		Collections.reverse(events);
+		return events;
+	}
+
+	/**
+	 * Returns the number of events in the journal.
+	 */
+	public synchronized long size() {
+		return records;
+	}
+
+	/**
+	 * Returns the number of packages in the journal.
+	 */
+	public synchronized long packages() {
+		return index.size();
+	}
+
+	/**
+	 * Writes the segments out to disk and closes the office names file. The
+	 * journal must not be used afterwards.
+	 *
+	 * @exception IOException
+	 *                Thrown if an I/O error occurred.
+	 */
+	public synchronized void close() throws IOException {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		officeFile.close();
+	}
+
+	private int officeId(String name) throws IOException {
+		Integer id = officeIds.get(name);
+		if (id == null) {
+			officeFile.write(name + "\n");
+			officeFile.flush();
+			id = officeNames.size();
+			officeNames.add(name);
+			officeIds.put(name, id);
+		}
+		return id;
+	}
+
+	private MappedByteBuffer buffer(long record) {
+		return segments.get((int) (record / perSegment));
+	}
+
+	private int offset(long record) {
+		return (int) (record % perSegment) * RECORD;
+	}
+
+	private File segment(int number) {
+		return new File(directory, String.format("events-%06d.seg", number));
+	}
+
+	/**
+	 * Maps a segment, creating it full of zeros if it does not exist.
+	 */
+	private MappedByteBuffer map(int number) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segment(number), "rw");
+		try {
+			long length = (long) perSegment * RECORD;
+			if (file.length() < length) {
+				file.setLength(length);
+			}
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			// The mapping stays valid after the file is closed.
+			file.close();
+		}
+	}
+
+	/**
+	 * Event journal main program.
+	 *
+	 * @param String
+	 *            [] args
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: java EventJournal <directory>"
+					+ " <trackingNumber>...");
+			System.exit(1);
+		}
+		long start = System.nanoTime();
+		EventJournal journal = new EventJournal(new File(args[0]), Long
+				.getLong("Headquarters.journal.segment", 64L << 20));
+		System.out.printf("%d events of %d packages, opened in %.1f s%n",
+				journal.size(), journal.packages(),
+				(System.nanoTime() - start) / 1e9);
+		for (int i = 1; i < args.length; i++) {
+			List<NodeEvent> history = journal.history(Long.parseLong(args[i]));
+			if (history.isEmpty()) {
+				System.out.println("Package number " + args[i]
+						+ " is not in the journal");
+			}
+			for (NodeEvent event : history) {
+				System.out.println(event);
+			}
+		}
+		journal.close();
+	}
+}
@@ -0,0 +1,174 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class ForwardingStage runs the forwarding work of a GPS office on a fixed
+ * number of worker threads and limits the number of packages the office holds
+ * at once. A package is admitted when it arrives and released when it has been
+ * delivered, sent on or lost. When the office is full, new packages are
+ * refused according to the stage's admission policy.
+ */
+public class ForwardingStage implements Executor {
+
+	/**
+	 * What to do with a package that arrives when the office is full.
+	 */
+	public static enum Policy {
+
+		/**
+		 * Refuse the package; the sender reports it lost.
+		 */
+		REJECT,
+
+		/**
+		 * Take the package and drop it; this office reports it lost.
+		 */
+		SHED,
+
+		/**
+		 * Refuse the package; the sender tries another of its neighbors.
+		 */
+		REDIRECT
+	}
+
+	private final ThreadPoolExecutor workers;
+	private final int capacity;
+	private final Policy policy;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+
+	/**
+	 * Creates a new forwarding stage.
+	 * 
+	 * @param threads
+	 *            Number of worker threads.
+	 * @param capacity
+	 *            Maximum number of packages held at once.
+	 * @param policy
+	 *            Admission policy applied when the office is full.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if threads or capacity is not
+	 *                positive.
+	 */
+	public ForwardingStage(int threads, int capacity, Policy policy) {
+		if (threads <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("Forwarding stage: threads "
+					+ threads + " and capacity " + capacity
+					+ " must be positive.");
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		// Every admitted package has at most one task queued, so a queue the
+		// size of the capacity never overflows.
+		this.workers = new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+						capacity));
+	}
+
+	/**
+	 * Admits a package if the office has room for it.
+	 * 
+	 * @return True if the package was admitted and must later be released,
+	 *         false if it must be refused according to the policy.
+	 */
+	public boolean tryAdmit() {
+		int n;
+		do {
+			n = inFlight.get();
+			if (n >= capacity) {
+				refused.incrementAndGet();
+				return false;
+			}
+		} while (!inFlight.compareAndSet(n, n + 1));
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Releases a package admitted earlier.
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Runs forwarding work for an admitted package on a worker thread.
+	 * 
+	 * @param task
+	 *            Work to run.
+	 */
+	public void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	/**
+	 * Stops the worker threads. Work not yet started is dropped.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Waits for the work already running when the stage was shut down to
+	 * finish.
+	 * 
+	 * @param millis
+	 *            Longest time to wait in milliseconds.
+	 * 
+	 * @return True if the work finished, false if the time ran out.
+	 * 
+	 * @exception InterruptedException
+	 *                Thrown if the calling thread was interrupted.
+	 */
+	public boolean awaitTermination(long millis) throws InterruptedException {
+		return workers.awaitTermination(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the admission policy.
+	 */
+	public Policy policy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of packages currently held.
+	 */
+	public int inFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the number of tasks waiting for a worker thread.
+	 */
+	public int queueDepth() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of packages admitted so far.
+	 */
+	public long admitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * Returns the number of packages refused so far.
+	 */
+	public long refused() {
+		return refused.get();
+	}
+
+	public String toString() {
+		return "in flight " + inFlight() + "/" + capacity + ", queued "
+				+ queueDepth() + ", admitted " + admitted() + ", refused "
+				+ refused() + " (" + policy + ")";
+	}
+}
@@ -0,0 +1,352 @@
+import edu.rit.ds.RemoteEventListener;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Class GPSClient sends packages through the GPS tracking system and tracks
+ * them. Every package gets a future which completes with the DELIVERED event,
+ * or fails with a PacketLostException on loss, and optionally a callback
+ * which sees each of the package's events in order.
+ *
+ * One exported listener serves all the client's packages and hands each event
+ * to its package by tracking number, so one client can track many thousands
+ * of packages at once. Events which arrive before the office has returned the
+ * package's tracking number are held until it has. Callbacks and future
+ * completions run on the thread which delivered the event.
+ *
+ * Nothing is tracked forever. The tracking numbers of the latest finished
+ * packages are remembered, so that an ARRIVED or DEPARTED event which comes
+ * after its package's DELIVERED or LOST event is dropped. A package with no
+ * final event within GPSClient.deadline milliseconds (default 60000) fails
+ * with a TimeoutException, and events held for a tracking number that no
+ * submission claims are dropped after a while.
+ */
+public class GPSClient {
+
+	private static final String DEADLINE_PROPERTY = "GPSClient.deadline";
+
+	/**
+	 * Number of finished tracking numbers remembered.
+	 */
+	private static final int FINISHED = 1 << 16;
+
+	/**
+	 * Milliseconds events are held for a tracking number before a submission
+	 * claims it; longer than any submitPacket call should take.
+	 */
+	private static final long EARLY_MILLIS = 10000L;
+
+	/**
+	 * Milliseconds between sweeps for expired packages.
+	 */
+	private static final long SWEEP_MILLIS = 1000L;
+
+	/**
+	 * Class Tracker is the state of one package. It is created by whichever
+	 * comes first, the package's first event or its tracking number.
+	 */
+	private class Tracker {
+
+		private final long trackingNumber;
+
+		// Guarded by this tracker's lock.
+		private CompletableFuture<NodeEvent> future;
+		private Consumer<NodeEvent> callback;
+		private ArrayList<NodeEvent> early;
+		private long since = System.currentTimeMillis();
+		private boolean done;
+
+		Tracker(long trackingNumber) {
+			this.trackingNumber = trackingNumber;
+		}
+
+		/**
+		 * Attaches the package's future and callback and replays the events
+		 * which came early.
+		 */
+		void attach(CompletableFuture<NodeEvent> future,
+				Consumer<NodeEvent> callback) {
+			ArrayList<NodeEvent> replay;
+			synchronized (this) {
+				this.future = future;
+				this.callback = callback;
+				since = System.currentTimeMillis();
+				replay = early;
+				early = null;
+				if (replay != null) {
+					for (NodeEvent event : replay) {
+						deliver(event);
+					}
+				}
+			}
+		}
+
+		synchronized void event(NodeEvent event) {
+			if (done) {
+				return;
+			}
+			if (future == null) {
+				if (early == null) {
+					early = new ArrayList<NodeEvent>(4);
+				}
+				early.add(event);
+			} else {
+				deliver(event);
+			}
+		}
+
+		private void deliver(NodeEvent event) {
+			if (done) {
+				return;
+			}
+			if (callback != null) {
+				try {
+					callback.accept(event);
+				} catch (RuntimeException exc) {
+				}
+			}
+			if (event.isFinal()) {
+				done = true;
+				remember(trackingNumber);
+				trackers.remove(trackingNumber, this);
+				if (event.type == NodeEvent.Type.DELIVERED) {
+					future.complete(event);
+				} else {
+					future.completeExceptionally(new PacketLostException(event));
+				}
+			}
+		}
+
+		/**
+		 * Gives up on the package if it is past its deadline, or drops the
+		 * events held for it if no submission has claimed it in time.
+		 */
+		synchronized void expire(long now) {
+			if (done) {
+				return;
+			}
+			if (future == null) {
+				if (now - since >= EARLY_MILLIS) {
+					done = true;
+					trackers.remove(trackingNumber, this);
+				}
+				return;
+			}
+			if (now - since < deadline) {
+				return;
+			}
+			done = true;
+			remember(trackingNumber);
+			trackers.remove(trackingNumber, this);
+			future.completeExceptionally(new TimeoutException(
+					"No final event for package " + trackingNumber + " in "
+							+ deadline + " ms"));
+		}
+	}
+
+	private final Directory registry;
+	private final ExecutorService submitters;
+	private final ScheduledExecutorService sweeper;
+	private final RemoteEventListener<NodeEvent> listener;
+	private final long deadline;
+
+	private final ConcurrentHashMap<String, GPSOfficeRef> offices = new ConcurrentHashMap<String, GPSOfficeRef>();
+	private final ConcurrentHashMap<Long, Tracker> trackers = new ConcurrentHashMap<Long, Tracker>();
+
+	/**
+	 * Tracking numbers of the latest finished packages, oldest first. Guarded
+	 * by its own lock.
+	 */
+	private final Map<Long, Boolean> finished = new LinkedHashMap<Long, Boolean>() {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > FINISHED;
+		}
+	};
+
+	private final Function<Long, Tracker> newTracker = new Function<Long, Tracker>() {
+		public Tracker apply(Long trackingNumber) {
+			return new Tracker(trackingNumber);
+		}
+	};
+
+	/**
+	 * Creates a new client which submits packages with 16 threads.
+	 *
+	 * @param registry
+	 *            Registry the offices are bound in.
+	 *
+	 * @exception RemoteException
+	 *                Thrown if the listener could not be exported.
+	 */
+	public GPSClient(Directory registry) throws RemoteException {
+		this(registry, 16);
+	}
+
+	/**
+	 * Creates a new client.
+	 *
+	 * @param registry
+	 *            Registry the offices are bound in.
+	 * @param threads
+	 *            Number of threads making submitPacket calls.
+	 *
+	 * @exception RemoteException
+	 *                Thrown if the listener could not be exported.
+	 */
+	public GPSClient(Directory registry, int threads)
+			throws RemoteException {
+		this.registry = registry;
+		this.submitters = Executors.newFixedThreadPool(threads);
+		this.deadline = Long.getLong(DEADLINE_PROPERTY, 60000L);
+		listener = new RemoteEventListener<NodeEvent>() {
+			public void report(long seqnum, NodeEvent event) {
+				Tracker tracker = trackers.get(event.trackingNumber);
+				if (tracker == null) {
+					if (finished(event.trackingNumber)) {
+						// A late event of a package already finished.
+						return;
+					}
+					tracker = trackers.computeIfAbsent(event.trackingNumber,
+							newTracker);
+					if (finished(event.trackingNumber)) {
+						// It finished meanwhile.
+						trackers.remove(event.trackingNumber, tracker);
+						return;
+					}
+				}
+				tracker.event(event);
+			}
+		};
+		UnicastRemoteObject.exportObject(listener, 0);
+		sweeper = Executors.newSingleThreadScheduledExecutor();
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				long now = System.currentTimeMillis();
+				for (Tracker tracker : trackers.values()) {
+					tracker.expire(now);
+				}
+			}
+		}, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a package.
+	 *
+	 * @param origin
+	 *            Name of the originating office.
+	 * @param x
+	 *            X coordinate of the destination.
+	 * @param y
+	 *            Y coordinate of the destination.
+	 *
+	 * @return Future of the DELIVERED event.
+	 */
+	public CompletableFuture<NodeEvent> submit(String origin, double x,
+			double y) {
+		return submit(origin, x, y, null);
+	}
+
+	/**
+	 * Sends a package and streams its events to a callback. The call returns
+	 * at once; the office is called on another thread.
+	 *
+	 * @param origin
+	 *            Name of the originating office.
+	 * @param x
+	 *            X coordinate of the destination.
+	 * @param y
+	 *            Y coordinate of the destination.
+	 * @param callback
+	 *            Receiver of every event of the package, or null.
+	 *
+	 * @return Future of the DELIVERED event. It fails with a
+	 *         PacketLostException if the package is lost, with a
+	 *         TimeoutException if neither event comes by the deadline, or
+	 *         with the exception thrown if it could not be submitted.
+	 *         Cancelling it stops tracking the package.
+	 */
+	public CompletableFuture<NodeEvent> submit(final String origin,
+			final double x, final double y, final Consumer<NodeEvent> callback) {
+		final CompletableFuture<NodeEvent> future = new CompletableFuture<NodeEvent>();
+		submitters.execute(new Runnable() {
+			public void run() {
+				final long trackingNumber;
+				try {
+					trackingNumber = office(origin).submitPacket(x, y,
+							listener);
+				} catch (Exception exc) {
+					offices.remove(origin);
+					future.completeExceptionally(exc);
+					return;
+				}
+				final Tracker tracker = trackers.computeIfAbsent(
+						trackingNumber, newTracker);
+				future.whenComplete(new BiConsumer<NodeEvent, Throwable>() {
+					public void accept(NodeEvent event, Throwable exc) {
+						remember(trackingNumber);
+						trackers.remove(trackingNumber, tracker);
+					}
+				});
+				tracker.attach(future, callback);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns the number of packages being tracked.
+	 */
+	public int pending() {
+		return trackers.size();
+	}
+
+	/**
+	 * Stops the client. Packages still in the system are no longer tracked.
+	 */
+	public void close() {
+		submitters.shutdown();
+		sweeper.shutdownNow();
+		try {
+			UnicastRemoteObject.unexportObject(listener, true);
+		} catch (NoSuchObjectException exc) {
+		}
+	}
+
+	private void remember(long trackingNumber) {
+		synchronized (finished) {
+			finished.put(trackingNumber, Boolean.TRUE);
+		}
+	}
+
+	private boolean finished(long trackingNumber) {
+		synchronized (finished) {
+			return finished.containsKey(trackingNumber);
+		}
+	}
+
+	private GPSOfficeRef office(String name) throws Exception {
+		GPSOfficeRef office = offices.get(name);
+		if (office == null) {
+			office = (GPSOfficeRef) registry.lookup(name);
+			offices.put(name, office);
+		}
+		return office;
+	}
+}
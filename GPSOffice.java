@@ -2,6 +2,7 @@ import edu.rit.ds.registry.AlreadyBoundException;
 import edu.rit.ds.registry.NotBoundException;
 import edu.rit.ds.registry.RegistryProxy;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -10,13 +11,24 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+
 import edu.rit.ds.Lease;
 import edu.rit.ds.RemoteEventGenerator;
 import edu.rit.ds.RemoteEventListener;
@@ -25,9 +37,12 @@ import edu.rit.ds.RemoteEventListener;
  * Class GPSOffice sets up a GPS office with the name of the office and the X
  * and Y coordinates of the office's location. This class binds the GPS office
  * to the registry and computes its 3 nearest neighbors computed by the
- * Euclidean distance. Whenever a new office is added, the neighbors of each
- * office is recomputed. It also consists of various event generators to be send
- * to the event listeners in Class Customer and Class Headquarters.
+ * Euclidean distance. Each office keeps a local spatial index of the offices it
+ * knows about, filled once at startup and then kept up to date from the
+ * Registry Server's bound and unbound events, and takes its neighbors from that
+ * index so that forwarding a packet never scans the registry. It also consists of
+ * various event generators to be send to the event listeners in Class Customer
+ * and Class Headquarters.
  * 
  * Usage: java Start GPSOffice host port name X Y host = Registry Server's host
  * port = Registry Server's port name = Name of the GPSOffice X = X coordinate
@@ -35,6 +50,130 @@ import edu.rit.ds.RemoteEventListener;
  */
 public class GPSOffice implements GPSOfficeRef {
 
+	/**
+	 * Number of neighbors kept by each GPS office.
+	 */
+	private static final int NEIGHBORS = 3;
+
+	/**
+	 * Cell size of the spatial index, in the units of the office coordinates.
+	 */
+	private static final double INDEX_CELL_SIZE = 10.0;
+
+	/**
+	 * Number of threads used to fetch the descriptors of the existing offices
+	 * at startup.
+	 */
+	private static final int BOOTSTRAP_THREADS = 64;
+
+	/**
+	 * Number of remote references kept for offices which send packets to
+	 * this office but are not its neighbors.
+	 */
+	private static final int SENDER_STUBS = 64;
+
+	/**
+	 * Longest time, in milliseconds, shutdown waits for the forwarding work
+	 * already running to finish before it stops the event dispatcher.
+	 */
+	private static final long SHUTDOWN_WAIT = 1000L;
+
+	/**
+	 * System property holding the transit delay of this office in
+	 * milliseconds. The delay of the link to one neighbor can be set with this
+	 * name followed by "." and the neighbor's name.
+	 */
+	private static final String DELAY_PROPERTY = "GPSOffice.delay";
+
+	/**
+	 * Default transit delay in milliseconds.
+	 */
+	private static final long DEFAULT_DELAY = 3000L;
+
+	/**
+	 * System properties holding the number of forwarding threads, the maximum
+	 * number of packages held at once and the admission policy (REJECT, SHED
+	 * or REDIRECT) applied when that maximum is reached.
+	 */
+	private static final String WORKERS_PROPERTY = "GPSOffice.workers";
+	private static final String CAPACITY_PROPERTY = "GPSOffice.capacity";
+	private static final String ADMISSION_PROPERTY = "GPSOffice.admission";
+
+	/**
+	 * System property holding this office's id for tracking numbers, 0 to
+	 * 8191. If not set, the first free id is claimed; see OfficeId.
+	 */
+	private static final String ID_PROPERTY = "GPSOffice.id";
+
+	/**
+	 * System properties holding the number of entries in the next hop cache
+	 * and the side length of the destination cells it is keyed by.
+	 */
+	private static final String CACHE_SIZE_PROPERTY = "GPSOffice.cache.size";
+	private static final String CACHE_CELL_PROPERTY = "GPSOffice.cache.cell";
+
+	/**
+	 * System properties configuring event delivery: number of dispatcher
+	 * threads, events queued per listener, events delivered per batch, the
+	 * overflow policy (DROP_OLDEST or DROP_NEWEST), the number of failures
+	 * in a row after which a listener is evicted and the milliseconds after
+	 * which an evicted listener is forgotten.
+	 */
+	private static final String EVENT_THREADS_PROPERTY = "GPSOffice.events.threads";
+	private static final String EVENT_QUEUE_PROPERTY = "GPSOffice.events.queue";
+	private static final String EVENT_BATCH_PROPERTY = "GPSOffice.events.batch";
+	private static final String EVENT_OVERFLOW_PROPERTY = "GPSOffice.events.overflow";
+	private static final String EVENT_FAILURES_PROPERTY = "GPSOffice.events.failures";
+	private static final String EVENT_EVICTED_PROPERTY = "GPSOffice.events.evicted";
+
+	/**
+	 * Names of the system properties which choose the transport used to send
+	 * packets to other offices (rmi or nio), and for nio the port to listen
+	 * on and the host name advertised to other offices.
+	 */
+	private static final String TRANSPORT_PROPERTY = "GPSOffice.transport";
+	private static final String TRANSPORT_PORT_PROPERTY = "GPSOffice.transport.port";
+	private static final String TRANSPORT_HOST_PROPERTY = "GPSOffice.transport.host";
+
+	/**
+	 * Name of the system property for how long, in milliseconds, an office
+	 * waits for the next office to acknowledge a packet before it reports the
+	 * packet lost.
+	 */
+	private static final String ACK_TIMEOUT_PROPERTY = "GPSOffice.ack.timeout";
+
+	/**
+	 * Name of the system property for the number of threads which send
+	 * acknowledgements to upstream offices.
+	 */
+	private static final String ACK_THREADS_PROPERTY = "GPSOffice.ack.threads";
+
+	/**
+	 * Names of the system properties for the most packets sent to one
+	 * neighbor in one call, and the longest time in milliseconds a packet
+	 * waits for its batch to fill.
+	 */
+	private static final String BATCH_SIZE_PROPERTY = "GPSOffice.batch.size";
+	private static final String BATCH_WINDOW_PROPERTY = "GPSOffice.batch.window";
+
+	/**
+	 * Class Outstanding is a packet this office has sent on and still owns,
+	 * because the next office has not acknowledged it yet.
+	 */
+	private static class Outstanding {
+		final Packet request;
+		final RemoteEventListener<NodeEvent> listener;
+		volatile String nextcity;
+		volatile boolean redirected;
+		volatile ScheduledFuture<?> timeout;
+		volatile long sent;
+
+		Outstanding(Packet request, RemoteEventListener<NodeEvent> listener) {
+			this.request = request;
+			this.listener = listener;
+		}
+	}
+
 	/**
 	 * Registry Proxy's name
 	 */
@@ -63,28 +202,128 @@ public class GPSOffice implements GPSOfficeRef {
 	private boolean flag;
 
 	/**
-	 * HashMap to store this GPSOffice object's neighbor names and their
-	 * respective distance.
+	 * Locations of all the GPS offices known to this office, not including
+	 * this office itself.
 	 */
-	private HashMap<String, Double> N;
+	private SpatialIndex index;
 
 	/**
-	 * HashMap to store this GPSOffice object's neighbor names and their
-	 * respective X & Y coordinates.
+	 * This office's neighbors. The table is never changed in place: a writer
+	 * builds a new table and publishes it here, so readers need no lock and
+	 * always see one consistent table.
 	 */
-	private HashMap<String, Double[]> XY;
+	private final AtomicReference<NeighborTable> neighbors = new AtomicReference<NeighborTable>(
+			NeighborTable.EMPTY);
 
 	/**
-	 * ArrayList to store this GPSOffice object's neighbor names.
+	 * Remote references to this office's neighbors, so that forwarding a
+	 * packet does not look the next office up in the registry. An entry is
+	 * filled when the neighbor is added and dropped when the neighbor leaves
+	 * the table, is unbound or fails.
 	 */
-	private ArrayList<String> neigh_names = new ArrayList<String>();
+	private final ConcurrentHashMap<String, GPSOfficeRef> stubs = new ConcurrentHashMap<String, GPSOfficeRef>();
 
-	private RegistryProxy registry;
-	private ExecutorService reaper;
-	private calculate calc;
-	private String nextcity;
+	/**
+	 * Remote references to the latest offices acknowledged that are not
+	 * neighbors, at most SENDER_STUBS of them, least recently used first.
+	 * Guarded by its own lock.
+	 */
+	private final Map<String, GPSOfficeRef> senderStubs = new LinkedHashMap<String, GPSOfficeRef>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+				Map.Entry<String, GPSOfficeRef> eldest) {
+			return size() > SENDER_STUBS;
+		}
+	};
+
+	/**
+	 * Offices taken out of the spatial index because they stopped answering
+	 * while still bound. Each is put back as soon as it is heard from again,
+	 * and they are asked in the background, every ack timeout, whether they
+	 * have come back.
+	 */
+	private final Set<String> suspects = ConcurrentHashMap.<String> newKeySet();
+
+	/**
+	 * Cache of next hop decisions by destination cell.
+	 */
+	private NextHopCache nextHops;
+
+	/**
+	 * The registry this office is bound in.
+	 */
+	private Directory registry;
+
+	/**
+	 * Set when the office has been shut down.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Single thread which applies registry events to the spatial index in the
+	 * order they arrive.
+	 */
+	private ExecutorService topology;
+
+	/**
+	 * Bounded worker pool and admission control for forwarding packets.
+	 */
+	private ForwardingStage stage;
+
+	/**
+	 * Timer on which packets wait out their transit delay. A waiting packet
+	 * holds no thread.
+	 */
+	private ScheduledExecutorService timer;
+
+	/**
+	 * Transit delay of this office, and of each link for which one has been
+	 * looked up, in milliseconds.
+	 */
+	private long officeDelay;
+	private ConcurrentHashMap<String, Long> linkDelays = new ConcurrentHashMap<String, Long>();
+
+	private OfficeId officeId;
+	private TrackingNumberGenerator trackingNumbers;
 	private RemoteEventGenerator<NodeEvent> eventGenerator;
 
+	/**
+	 * Delivers node events in the background. The Headquarters listeners are
+	 * reached through the event generator, which sits behind its own queue.
+	 */
+	private EventDispatcher dispatcher;
+	private RemoteEventListener<NodeEvent> headquarters;
+
+	/**
+	 * How packets are sent to other offices.
+	 */
+	private Transport transport;
+
+	/**
+	 * Packets sent on and not yet acknowledged, by tracking number. Each one
+	 * still holds its slot in the forwarding stage.
+	 */
+	private final ConcurrentHashMap<Long, Outstanding> outstanding = new ConcurrentHashMap<Long, Outstanding>();
+	private long ackTimeout;
+
+	/**
+	 * Sends acknowledgements, so that taking in a packet never waits on the
+	 * office that sent it.
+	 */
+	private ExecutorService acks;
+
+	/**
+	 * Collects departing packets into one batch per neighbor.
+	 */
+	private Batcher<Outstanding> outbound;
+
+	/**
+	 * Counters and timings of this office, published over JMX.
+	 */
+	private OfficeMetrics metrics;
+
 	/**
 	 * Constructs a new GPSOffice object. Binds the new office object in the
 	 * registry. Also constructs the neighbors of the object by iterating the
@@ -106,53 +345,429 @@ public class GPSOffice implements GPSOfficeRef {
 	 */
 
 	public GPSOffice(String args[]) throws IOException, NotBoundException {
-
-		N = new HashMap<String, Double>();
-		XY = new HashMap<String, Double[]>();
-
 		if (args.length != 5) {
 			usage();
 			System.exit(0);
 		}
 		host = args[0];
 		port = parseInt(args[1]);
-		name = args[2];
-		X = parseDouble(args[3]);
-		Y = parseDouble(args[4]);
+		init(new RegistryDirectory(new RegistryProxy(host, port)), args[2],
+				parseDouble(args[3]), parseDouble(args[4]), Integer.getInteger(
+						ID_PROPERTY, -1));
+	}
 
-		nextcity = name;
+	/**
+	 * Constructs a new GPSOffice object bound in the given directory, for
+	 * running offices without a Registry Server, such as many offices in one
+	 * process.
+	 * 
+	 * @param directory
+	 *            Directory to bind the office in.
+	 * @param name
+	 *            Name of the GPS office.
+	 * @param x
+	 *            X Coordinate of the office's location.
+	 * @param y
+	 *            Y Coordinate of the office's location.
+	 * @param officeId
+	 *            Id of the office in its tracking numbers, 0 to 8191, or -1
+	 *            to claim the first free id.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if an office of the same
+	 *                name already exists, or if the id is used by another
+	 *                running office.
+	 * @exception IOException
+	 *                Thrown if an I/O error or a remote error occurred.
+	 */
+	public GPSOffice(Directory directory, String name, double x, double y,
+			int officeId) throws IOException {
+		init(directory, name, x, y, officeId);
+	}
 
-		// Get a proxy for the Registry Server.
-		registry = new RegistryProxy(host, port);
+	/**
+	 * Sets the office up, binds it and fills in its neighbors.
+	 */
+	private void init(Directory directory, String name, double x, double y,
+			int officeId) throws IOException {
+		index = new SpatialIndex(INDEX_CELL_SIZE);
+		registry = directory;
+		this.name = name;
+		X = x;
+		Y = y;
+
+		officeDelay = Long.getLong(DELAY_PROPERTY, DEFAULT_DELAY);
+		ackTimeout = Long.getLong(ACK_TIMEOUT_PROPERTY, 10000L);
+
+		// Creates a bounded thread pool.
+		stage = new ForwardingStage(Integer.getInteger(WORKERS_PROPERTY, 16),
+				Integer.getInteger(CAPACITY_PROPERTY, 100000),
+				ForwardingStage.Policy.valueOf(System.getProperty(
+						ADMISSION_PROPERTY, "REJECT").toUpperCase()));
+		topology = Executors.newSingleThreadExecutor();
+		timer = Executors.newSingleThreadScheduledExecutor();
+		acks = Executors.newFixedThreadPool(Integer.getInteger(
+				ACK_THREADS_PROPERTY, 4));
+		outbound = new Batcher<Outstanding>(Integer.getInteger(
+				BATCH_SIZE_PROPERTY, 32), Long.getLong(BATCH_WINDOW_PROPERTY,
+				5L), timer, stage, new Batcher.Sink<Outstanding>() {
+			public void flush(String officeName, List<Outstanding> batch) {
+				sendBatch(officeName, batch);
+			}
 
-		// Creates a new thread pool.
-		reaper = Executors.newCachedThreadPool();
+			public void rejected(String officeName, List<Outstanding> batch) {
+				for (Outstanding packet : batch) {
+					if (settle(packet) && !closed) {
+						lost(packet.request, packet.listener);
+					}
+				}
+			}
+		});
 
-		calc = new calculate();
+		nextHops = new NextHopCache(Integer.getInteger(CACHE_SIZE_PROPERTY,
+				4096), Double.parseDouble(System.getProperty(
+				CACHE_CELL_PROPERTY, "1.0")));
 
 		// Throws events for package arrival.
 		eventGenerator = new RemoteEventGenerator<NodeEvent>();
+		dispatcher = new EventDispatcher(Integer.getInteger(
+				EVENT_THREADS_PROPERTY, 4), Integer.getInteger(
+				EVENT_QUEUE_PROPERTY, 1024), Integer.getInteger(
+				EVENT_BATCH_PROPERTY, 64), EventDispatcher.Overflow
+				.valueOf(System.getProperty(EVENT_OVERFLOW_PROPERTY,
+						"DROP_OLDEST").toUpperCase()), Integer.getInteger(
+				EVENT_FAILURES_PROPERTY, 3), Long.getLong(
+				EVENT_EVICTED_PROPERTY, 60000L));
+		metrics = new OfficeMetrics(name, stage, nextHops, dispatcher,
+				outbound, outstanding);
+		headquarters = new RemoteEventListener<NodeEvent>() {
+			public void report(long seqnum, NodeEvent event) {
+				eventGenerator.reportEvent(event);
+			}
+		};
+
+		if ("nio".equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY,
+				"rmi"))) {
+			transport = new NioTransport(System.getProperty(
+					TRANSPORT_HOST_PROPERTY, InetAddress.getLocalHost()
+							.getHostAddress()), Integer.getInteger(
+					TRANSPORT_PORT_PROPERTY, 0), new Transport.Receiver() {
+				public void receive(Packet request,
+						RemoteEventListener<NodeEvent> listener) {
+					forwardPacket(request, listener);
+				}
+
+				public void acknowledged(long trackingNumber, int hops,
+						String officeName, GPSOfficeRef.Ack ack) {
+					acknowledge(trackingNumber, hops, officeName, ack);
+				}
+			});
+		} else {
+			transport = new RmiTransport();
+		}
 
 		// Export this node.
 		UnicastRemoteObject.exportObject(this, 0);
 
-		// Bind this GPS office into the Registry Server.
+		// Tell the registry to notify us when a GPSOffice object is bound or
+		// unbound.
+		registry.watch("GPSOffice", new Directory.Watcher() {
+			public void bound(final String officeName) {
+				if (!closed) {
+					topology.execute(new Runnable() {
+						public void run() {
+							officeBound(officeName);
+						}
+					});
+				}
+			}
+
+			public void unbound(final String officeName) {
+				if (!closed) {
+					topology.execute(new Runnable() {
+						public void run() {
+							officeUnbound(officeName);
+						}
+					});
+				}
+			}
+		});
+
+		// Claim an office id no other running office has, then bind this GPS
+		// office into the Registry Server.
+		try {
+			this.officeId = OfficeId.claim(directory, name, officeId);
+		} catch (IOException exc) {
+			shutdown();
+			throw exc;
+		} catch (IllegalArgumentException exc) {
+			shutdown();
+			throw exc;
+		}
+		trackingNumbers = new TrackingNumberGenerator(this.officeId.id());
 		try {
 			registry.bind(name, this);
 		} catch (AlreadyBoundException exc) {
-			try {
-				// Unbinding it from the registry.
-				UnicastRemoteObject.unexportObject(this, true);
-			} catch (NoSuchObjectException exc2) {
-			}
+			this.officeId.release(true);
+			shutdown();
 			throw new IllegalArgumentException(name + " GPSOffice "
 					+ "already exists");
 		} catch (RemoteException exc) {
+			// Not bound, so no other office will ever call this one.
+			this.officeId.release(true);
+			shutdown();
+			throw exc;
+		}
+
+		try {
+			metrics.register();
+		} catch (JMException exc) {
+			// The office runs without being seen over JMX.
+		}
+
+		bootstrap();
+
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (String suspect : suspects) {
+					restore(suspect);
+				}
+			}
+		}, ackTimeout, ackTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fills the spatial index with the offices already bound in the registry.
+	 * This is the only time an office scans the whole registry; after this the
+	 * index follows the registry events. Registry events that arrive while
+	 * this runs wait for it to finish.
+	 * 
+	 * The offices are looked up and described in parallel, one remote call
+	 * each, so that joining a large system takes seconds.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if the registry could not be listed.
+	 */
+	private synchronized void bootstrap() throws RemoteException {
+		List<String> offices = registry.list("GPSOffice");
+		List<Callable<OfficeDescriptor>> tasks = new ArrayList<Callable<OfficeDescriptor>>(
+				offices.size());
+		Iterator<String> officeNames = offices.iterator();
+		while (officeNames.hasNext()) {
+			final String officeName = officeNames.next();
+			if (officeName.equals(name)) {
+				continue;
+			}
+			tasks.add(new Callable<OfficeDescriptor>() {
+				public OfficeDescriptor call() throws Exception {
+					return ((GPSOfficeRef) registry.lookup(officeName))
+							.describe();
+				}
+			});
+		}
+		if (!tasks.isEmpty()) {
+			ExecutorService fetcher = Executors.newFixedThreadPool(Math.min(
+					BOOTSTRAP_THREADS, tasks.size()));
 			try {
-				UnicastRemoteObject.unexportObject(this, true);
-			} catch (NoSuchObjectException exc2) {
+				for (Future<OfficeDescriptor> result : fetcher.invokeAll(tasks)) {
+					try {
+						OfficeDescriptor office = result.get();
+						index.put(office.name, office.x, office.y);
+						transport.address(office.name, office.endpoint);
+					} catch (ExecutionException exc) {
+						// The office went away or could not be reached.
+					}
+				}
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			} finally {
+				fetcher.shutdown();
+			}
+		}
+		refreshNeighbors();
+	}
+
+	/**
+	 * Adds a newly bound office to the spatial index. The neighbor tables are
+	 * rebuilt only if the new office is nearer than one of the current
+	 * neighbors. The new office is asked for its location before this
+	 * office's lock is taken, so a slow newcomer holds up no other thread.
+	 * 
+	 * @param officeName
+	 *            Name of the office that was bound.
+	 */
+	private void officeBound(String officeName) {
+		if (officeName.equals(name)) {
+			return;
+		}
+		OfficeDescriptor office;
+		try {
+			office = ((GPSOfficeRef) registry.lookup(officeName)).describe();
+		} catch (NotBoundException exc) {
+			return;
+		} catch (RemoteException exc) {
+			return;
+		}
+		addOffice(office);
+	}
+
+	/**
+	 * Puts a described office in the spatial index and rebuilds the neighbor
+	 * table if need be.
+	 * 
+	 * @param office
+	 *            Descriptor of the office.
+	 */
+	private synchronized void addOffice(OfficeDescriptor office) {
+		String officeName = office.name;
+		index.put(officeName, office.x, office.y);
+		transport.address(officeName, office.endpoint);
+		NeighborTable table = neighbors.get();
+		double distanceSq = (office.x - X) * (office.x - X) + (office.y - Y)
+				* (office.y - Y);
+		if (table.indexOf(officeName) >= 0 || table.size() < NEIGHBORS
+				|| distanceSq <= table.farthestDistanceSq(X, Y)) {
+			refreshNeighbors();
+		}
+	}
+
+	/**
+	 * Removes an unbound office from the spatial index. The neighbor tables
+	 * are rebuilt only if the office was one of this office's neighbors.
+	 * 
+	 * @param officeName
+	 *            Name of the office that was unbound.
+	 */
+	private void officeUnbound(String officeName) {
+		suspects.remove(officeName);
+		forgetOffice(officeName);
+	}
+
+	/**
+	 * Removes an office from the spatial index and rebuilds the neighbor
+	 * table if it was one of this office's neighbors.
+	 * 
+	 * @param officeName
+	 *            Name of the office.
+	 */
+	private synchronized void forgetOffice(String officeName) {
+		stubs.remove(officeName);
+		forgetSender(officeName);
+		metrics.forget(officeName);
+		index.remove(officeName);
+		if (neighbors.get().indexOf(officeName) >= 0) {
+			refreshNeighbors();
+		}
+	}
+
+	/**
+	 * Rebuilds this office's neighbor table from the 3 offices in the spatial
+	 * index that are nearest to this office. A new neighbor table, with the
+	 * next version, is published only if the neighbors changed. Writers are
+	 * serialized by this office's lock; readers never take it.
+	 */
+	private synchronized void refreshNeighbors() {
+		List<SpatialIndex.Entry> nearest = index.nearest(X, Y, NEIGHBORS, name);
+		NeighborTable current = neighbors.get();
+		NeighborTable table = NeighborTable.of(nearest, current.version() + 1);
+		if (!table.sameNeighbors(current)) {
+			neighbors.set(table);
+			cacheStubs(table);
+		}
+	}
+
+	/**
+	 * Drops the cached references and pending batches of offices that are no
+	 * longer neighbors and looks up the new neighbors in the background.
+	 * 
+	 * @param table
+	 *            The newly published neighbor table.
+	 */
+	private void cacheStubs(final NeighborTable table) {
+		final ArrayList<String> names = new ArrayList<String>(table.size());
+		for (int i = 0; i < table.size(); i++) {
+			names.add(table.name(i));
+		}
+		stubs.keySet().retainAll(names);
+		outbound.retain(names);
+		topology.execute(new Runnable() {
+			public void run() {
+				for (String officeName : names) {
+					try {
+						stub(officeName);
+					} catch (NotBoundException exc) {
+					} catch (RemoteException exc) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns a remote reference to the given office, from the cache if
+	 * possible, else from the registry.
+	 * 
+	 * @param officeName
+	 *            Office name.
+	 * 
+	 * @return GPSOfficeRef
+	 * 
+	 * @exception NotBoundException
+	 *                Thrown if the office is not bound in the registry.
+	 * @exception RemoteException
+	 *                Thrown if the registry could not be reached.
+	 */
+	private GPSOfficeRef stub(String officeName) throws NotBoundException,
+			RemoteException {
+		GPSOfficeRef stub = stubs.get(officeName);
+		if (stub == null) {
+			long start = System.nanoTime();
+			stub = (GPSOfficeRef) registry.lookup(officeName);
+			metrics.lookup(System.nanoTime() - start);
+			stubs.put(officeName, stub);
+		}
+		return stub;
+	}
+
+	/**
+	 * Returns a remote reference to an office to acknowledge packets to: the
+	 * neighbor's cached reference if it is a neighbor, else one from the
+	 * bounded cache of senders, else one from the registry.
+	 * 
+	 * @param officeName
+	 *            Office name.
+	 * 
+	 * @return GPSOfficeRef
+	 * 
+	 * @exception NotBoundException
+	 *                Thrown if the office is not bound in the registry.
+	 * @exception RemoteException
+	 *                Thrown if the registry could not be reached.
+	 */
+	private GPSOfficeRef senderStub(String officeName)
+			throws NotBoundException, RemoteException {
+		GPSOfficeRef stub = stubs.get(officeName);
+		if (stub != null) {
+			return stub;
+		}
+		synchronized (senderStubs) {
+			stub = senderStubs.get(officeName);
+		}
+		if (stub == null) {
+			long start = System.nanoTime();
+			stub = (GPSOfficeRef) registry.lookup(officeName);
+			metrics.lookup(System.nanoTime() - start);
+			synchronized (senderStubs) {
+				senderStubs.put(officeName, stub);
 			}
 		}
+		return stub;
+	}
+
+	private void forgetSender(String officeName) {
+		synchronized (senderStubs) {
+			senderStubs.remove(officeName);
+		}
 	}
 
 	/**
@@ -189,33 +804,63 @@ public class GPSOffice implements GPSOfficeRef {
 		return name;
 	}
 
+	/**
+	 * Returns the name, location, neighbor table version and transport address
+	 * of the current GPS office object in one call.
+	 */
+	public OfficeDescriptor describe() throws RemoteException {
+		return new OfficeDescriptor(name, X, Y, neighbors.get().version(),
+				transport.endpoint());
+	}
+
 	/**
 	 * Returns the hashmap which contains the neighbors and the corresponding
-	 * distances of this current GPS office object.
+	 * distances of this current GPS office object. The map is a copy made
+	 * from the current neighbor table.
 	 */
 	public HashMap<String, Double> getHashMap() throws RemoteException {
-		return N;
+		NeighborTable table = neighbors.get();
+		HashMap<String, Double> distances = new HashMap<String, Double>();
+		for (int i = 0; i < table.size(); i++) {
+			double dx = table.x(i) - X;
+			double dy = table.y(i) - Y;
+			distances.put(table.name(i), Math.sqrt(dx * dx + dy * dy));
+		}
+		return distances;
 	}
 
 	/**
 	 * Returns the hashmap which contains the neighbors and the corresponding X
-	 * & Y coordinate values of this current GPS office object.
+	 * & Y coordinate values of this current GPS office object. The map is a
+	 * copy made from the current neighbor table.
 	 */
 	public HashMap<String, Double[]> getNameXY() throws RemoteException {
-		return XY;
+		NeighborTable table = neighbors.get();
+		HashMap<String, Double[]> locations = new HashMap<String, Double[]>();
+		for (int i = 0; i < table.size(); i++) {
+			locations.put(table.name(i),
+					new Double[] { table.x(i), table.y(i) });
+		}
+		return locations;
 	}
 
 	/**
 	 * Returns the arraylist which contains the neighbor names of the current
-	 * GPS office object.
+	 * GPS office object. The list is a copy made from the current neighbor
+	 * table.
 	 */
 	public ArrayList<String> getNeighNames() throws RemoteException {
-		return neigh_names;
+		NeighborTable table = neighbors.get();
+		ArrayList<String> names = new ArrayList<String>(table.size());
+		for (int i = 0; i < table.size(); i++) {
+			names.add(table.name(i));
+		}
+		return names;
 	}
 
 	/**
-	 * Computes the neighbors of the calling object with the object in the
-	 * parameter.
+	 * Adds the office in the parameter to this office's spatial index and
+	 * recomputes this office's neighbors if the office was not known yet.
 	 * 
 	 * @param GPSOfficeRef
 	 *            node
@@ -227,61 +872,15 @@ public class GPSOffice implements GPSOfficeRef {
 	 */
 	public void neighbors(GPSOfficeRef office) throws RemoteException {
 
-		if (office.getName().equals(this.getName())) {
+		OfficeDescriptor descriptor = office.describe();
+		if (descriptor.name.equals(this.getName())) {
 			return;
 		}
-		if (this.getHashMap().containsKey(office.getName()))
+		if (index.contains(descriptor.name))
 			return;
-		Double distance = Math.sqrt(Math.pow((this.getX() - office.getX()), 2)
-				+ Math.pow((this.getY() - office.getY()), 2));
-
-		// Checking if this object has less than 3 neighbors i.e. it has
-		// less than 3 values in the hashmap.
-		if (this.getHashMap().size() < 3) {
-			this.getHashMap().put(office.getName(), distance);
-			this.getNeighNames().add(office.getName());
-			Double[] tempXY = new Double[2];
-			tempXY[0] = office.getX();
-			tempXY[1] = office.getY();
-			this.getNameXY().put(office.getName(), tempXY);
-		} else if (this.getHashMap().size() >= 3) {
-			boolean flag = false;
-			Double max = 0.0;
-			String neighbor_name = null;
-			for (Map.Entry<String, Double> entry1 : this.getHashMap()
-					.entrySet()) {
-				if (entry1.getValue() > max) {
-					max = entry1.getValue();
-					neighbor_name = entry1.getKey();
-				}
-			}
-			for (Map.Entry<String, Double> entry1 : this.getHashMap()
-					.entrySet()) {
-				if (distance <= entry1.getValue()) {
-					flag = true;
-					break;
-				}
-			}
-			// If flag is true, then the new GPS office's distance is
-			// less than the distance of one of the already present
-			// neighbors of the current GPS office.
-			if (flag == true) {
-				this.getHashMap().remove(neighbor_name);
-				this.getNameXY().remove(neighbor_name);
-				this.getNeighNames().remove(neighbor_name);
-				this.getHashMap().put(office.getName(), distance);
-				Double[] tempXY = new Double[2];
-				tempXY[0] = office.getX();
-				tempXY[1] = office.getY();
-				this.getNameXY().put(office.getName(), tempXY);
-				this.getNeighNames().add(office.getName());
-			}
-			if (flag == false) {
-				this.getHashMap().remove(office.getName());
-				this.getNameXY().remove(office.getName());
-				this.getNeighNames().remove(office.getName());
-			}
-		}
+		index.put(descriptor.name, descriptor.x, descriptor.y);
+		transport.address(descriptor.name, descriptor.endpoint);
+		refreshNeighbors();
 	}
 
 	/**
@@ -326,171 +925,661 @@ public class GPSOffice implements GPSOfficeRef {
 
 	/**
 	 * This function returns the tracking number of a package given by the
-	 * origin node.
+	 * origin node. Tracking numbers are unique across all offices.
 	 * 
 	 * @return long
 	 */
 	public long giveTrackingNumber() {
-		return System.currentTimeMillis();
+		return trackingNumbers.next();
 	}
 
 	/**
-	 * This function is called from the Customer Class and is used to forward
-	 * the packet through the network.
+	 * This function is called from the Customer Class to send a new package
+	 * from this office. The tracking number is made here, so the customer
+	 * needs only this one remote call.
 	 * 
-	 * @param Customer
-	 *            query. Consists of the unique tracking number, origin node, X
-	 *            & Y coordinates of the destination.
+	 * @param X
+	 *            X coordinate of the destination.
+	 * @param Y
+	 *            Y coordinate of the destination.
+	 * @param nodeListener
+	 *            Listener of the customer sending the package.
 	 * 
-	 * @return void
+	 * @return long Tracking number of the package.
 	 * 
 	 * @exception NotBoundException
 	 *                Thrown when not bounded correctly.
-	 * @throws RemoteException
+	 * @exception RemoteException
+	 *                Thrown when a remote error occurs.
 	 */
-	public void forwardPacket(final Customer request,
-			final RemoteEventListener<NodeEvent> nodeListener)
+	public long submitPacket(Double X, Double Y,
+			RemoteEventListener<NodeEvent> nodeListener)
 			throws NotBoundException, RemoteException {
+		long trackingNumber = trackingNumbers.next();
+		GPSOfficeRef.Ack ack = admit(new Packet(trackingNumber, X, Y, name),
+				nodeListener);
+		if (ack != GPSOfficeRef.Ack.ACCEPTED) {
+			throw new OfficeSaturatedException(name,
+					ack == GPSOfficeRef.Ack.REDIRECT);
+		}
+		return trackingNumber;
+	}
+
+	/**
+	 * This function is called by the previous office to forward the packet
+	 * through the network. It only queues the packet and returns; whether the
+	 * packet was taken is sent back to the previous office afterwards, as an
+	 * acknowledgement, by another thread.
+	 * 
+	 * @param Packet
+	 *            request. Consists of the unique tracking number, origin node,
+	 *            X & Y coordinates of the destination, the hop count and the
+	 *            sending office.
+	 * 
+	 * @return void
+	 */
+	public void forwardPacket(final Packet request,
+			final RemoteEventListener<NodeEvent> nodeListener) {
+		final GPSOfficeRef.Ack ack = admit(request, nodeListener);
+		final String sender = request.getSender();
+		if (sender == null) {
+			return;
+		}
+		contacted(sender);
+		acks.execute(new Runnable() {
+			public void run() {
+				try {
+					transport.acknowledge(senderStub(sender), sender,
+							request.getTrackingNumber(), request.getHops(),
+							name, ack);
+				} catch (Exception exc) {
+					// The sender gives up on the packet when its wait for
+					// this acknowledgement times out.
+					metrics.error();
+				}
+			}
+		});
+	}
+
+	/**
+	 * This function is called by the previous office to forward a batch of
+	 * packets in one call. Every packet is taken in as by forwardPacket, and
+	 * the whole batch is acknowledged with one call per sending office.
+	 * 
+	 * @param requests
+	 *            Packets.
+	 * @param listeners
+	 *            Listener of each packet, in the same order.
+	 */
+	public void forwardPackets(List<Packet> requests,
+			List<RemoteEventListener<NodeEvent>> listeners) {
+		final int n = requests.size();
+		final long[] trackingNumbers = new long[n];
+		final int[] hops = new int[n];
+		final GPSOfficeRef.Ack[] answers = new GPSOfficeRef.Ack[n];
+		final String[] senders = new String[n];
+		for (int i = 0; i < n; i++) {
+			Packet request = requests.get(i);
+			trackingNumbers[i] = request.getTrackingNumber();
+			hops[i] = request.getHops();
+			senders[i] = request.getSender();
+			answers[i] = admit(request, listeners.get(i));
+		}
+		if (n > 0 && senders[0] != null) {
+			contacted(senders[0]);
+		}
+		acks.execute(new Runnable() {
+			public void run() {
+				// A batch normally comes from one office; split it by sender
+				// in case it does not.
+				boolean[] done = new boolean[n];
+				for (int i = 0; i < n; i++) {
+					if (done[i] || senders[i] == null) {
+						continue;
+					}
+					String sender = senders[i];
+					int count = 0;
+					for (int j = i; j < n; j++) {
+						if (!done[j] && sender.equals(senders[j])) {
+							count++;
+						}
+					}
+					long[] t = new long[count];
+					int[] h = new int[count];
+					GPSOfficeRef.Ack[] a = new GPSOfficeRef.Ack[count];
+					for (int j = i, k = 0; j < n; j++) {
+						if (!done[j] && sender.equals(senders[j])) {
+							t[k] = trackingNumbers[j];
+							h[k] = hops[j];
+							a[k++] = answers[j];
+							done[j] = true;
+						}
+					}
+					try {
+						transport.acknowledgeAll(senderStub(sender), sender,
+								t, h, name, a);
+					} catch (Exception exc) {
+						// The sender times out on these packets.
+						metrics.error();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes in a packet. The next hop is chosen when the packet arrives; the
+	 * packet then waits out the transit delay of that link on the timer,
+	 * without holding a thread, and is sent on by a worker thread.
+	 * 
+	 * If this office already holds as many packets as it may, the packet is
+	 * refused or dropped, depending on the admission policy.
+	 * 
+	 * @param request
+	 *            Packet.
+	 * @param nodeListener
+	 *            Listener of the customer who sent the packet.
+	 * 
+	 * @return ACCEPTED if this office now owns the packet, even if it dropped
+	 *         it; SATURATED or REDIRECT if it refused the packet.
+	 */
+	private GPSOfficeRef.Ack admit(final Packet request,
+			final RemoteEventListener<NodeEvent> nodeListener) {
+		if (!stage.tryAdmit()) {
+			metrics.refused();
+			switch (stage.policy()) {
+			case SHED:
+				lost(request, nodeListener);
+				return GPSOfficeRef.Ack.ACCEPTED;
+			case REDIRECT:
+				return GPSOfficeRef.Ack.REDIRECT;
+			default:
+				return GPSOfficeRef.Ack.SATURATED;
+			}
+		}
+
+		boolean parked = false;
 		try {
-			List<String> nodes = registry.list();
-			Iterator<String> node1 = nodes.iterator();
-			while (node1.hasNext()) {
-				GPSOfficeRef someNode = (GPSOfficeRef) registry.lookup(node1
-						.next());
-				this.neighbors(someNode);
+			// Throws an event that the packet has arrived at this GPS office
+			report(NodeEvent.Type.ARRIVED, request, nodeListener);
+
+			// Compute the next destination of the current request i.e. packet.
+			final String nextcity = route(request.getX(), request.getY());
+			long delay = nextcity.equals(name) ? officeDelay
+					: linkDelay(nextcity);
+
+			// Park the packet until its delay has passed.
+			timer.schedule(new Runnable() {
+				public void run() {
+					try {
+						stage.execute(new Runnable() {
+							public void run() {
+								depart(request, nodeListener, nextcity);
+							}
+						});
+					} catch (RejectedExecutionException exc) {
+						stage.release();
+						if (!closed) {
+							lost(request, nodeListener);
+						}
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+			parked = true;
+		} finally {
+			if (!parked) {
+				stage.release();
 			}
-		} catch (RemoteException exc) {
 		}
+		return GPSOfficeRef.Ack.ACCEPTED;
+	}
 
-		// Throws an event that the packet has arrived at this GPS office
-		eventGenerator.reportEvent(new NodeEvent("Package number "
-				+ request.trackingnumber + " arrived at " + this.name
-				+ " office", request, 1));
-		nodeListener.report(0, new NodeEvent("Package number "
-				+ request.trackingnumber + " arrived at " + this.name
-				+ " office", request, 1));
-		final String thisOfficeName = this.name;
+	/**
+	 * Delivers the packet, or sends it on to the next GPS office, once its
+	 * transit delay has passed. A packet sent on keeps its slot in the
+	 * forwarding stage until the next office acknowledges it.
+	 * 
+	 * @param request
+	 *            Packet.
+	 * @param nodeListener
+	 *            Listener of the customer who sent the packet.
+	 * @param nextcity
+	 *            Next hop chosen for the packet when it arrived.
+	 */
+	private void depart(Packet request,
+			RemoteEventListener<NodeEvent> nodeListener, String nextcity) {
+		if (nextcity.equals(name)) {
+			report(NodeEvent.Type.DELIVERED, request, nodeListener);
+			stage.release();
+			return;
+		}
+		report(NodeEvent.Type.DEPARTED, request, nodeListener);
+		send(new Outstanding(request, nodeListener), nextcity);
+	}
 
-		// Wait three seconds.
-		slowDown();
+	/**
+	 * Queues an outstanding packet for the given office and waits, without
+	 * holding a thread, for the office to acknowledge it. The packet goes out
+	 * with the next batch for that office.
+	 * 
+	 * @param packet
+	 *            Outstanding packet.
+	 * @param nextcity
+	 *            Office to send it to.
+	 */
+	private void send(final Outstanding packet, String nextcity) {
+		packet.nextcity = nextcity;
+		packet.sent = System.nanoTime();
+		packet.timeout = timer.schedule(new Runnable() {
+			public void run() {
+				if (settle(packet)) {
+					lost(packet.request, packet.listener);
+				}
+			}
+		}, ackTimeout, TimeUnit.MILLISECONDS);
+		outstanding.put(packet.request.getTrackingNumber(), packet);
+		outbound.add(nextcity, packet);
+	}
 
-		/**
-		 * This block calls the calculate Class to compute the next destination
-		 * of the current request i.e. packet.
-		 */
+	/**
+	 * Sends a batch of outstanding packets to the given office in one call.
+	 * If the office has been unbound, each packet is routed again.
+	 * 
+	 * @param nextcity
+	 *            Office to send the packets to.
+	 * @param batch
+	 *            Outstanding packets.
+	 */
+	private void sendBatch(String nextcity, List<Outstanding> batch) {
 		try {
-			nextcity = calc.check(request.X, request.Y, this);
-			if (nextcity.equals(this.getName())) {
-				eventGenerator.reportEvent(new NodeEvent("Package number "
-						+ request.trackingnumber + " delivered " + "from "
-						+ nextcity + " office to (" + request.X + ","
-						+ request.Y + ")", request, 2));
-				nodeListener.report(0, new NodeEvent("Package number "
-						+ request.trackingnumber + " delivered " + "from "
-						+ nextcity + " office to (" + request.X + ","
-						+ request.Y + ")", request, 2));
+			GPSOfficeRef node;
+			try {
+				node = stub(nextcity);
+			} catch (NotBoundException e) {
+				officeUnbound(nextcity);
+				for (Outstanding packet : batch) {
+					reroute(packet);
+				}
 				return;
 			}
+			ArrayList<Packet> requests = new ArrayList<Packet>(batch.size());
+			ArrayList<RemoteEventListener<NodeEvent>> listeners = new ArrayList<RemoteEventListener<NodeEvent>>(
+					batch.size());
+			for (Outstanding packet : batch) {
+				requests.add(packet.request.nextHop(name));
+				listeners.add(packet.listener);
+			}
+			long start = System.nanoTime();
+			transport.forwardAll(node, nextcity, requests, listeners);
+			metrics.forward(nextcity, System.nanoTime() - start);
+		} catch (RemoteException ex) {
+			metrics.error();
+			lostAll(batch);
+			verifyFailure(nextcity, true);
+		} catch (Exception e) {
+			metrics.error();
+			lostAll(batch);
+		}
+	}
 
-			eventGenerator.reportEvent(new NodeEvent("Package number "
-					+ request.trackingnumber + " departed from " + this.name
-					+ " office", request, 3));
-			nodeListener.report(0, new NodeEvent("Package number "
-					+ request.trackingnumber + " departed from " + this.name
-					+ " office", request, 3));
-			final GPSOfficeRef node;
-			try {
-				node = (GPSOfficeRef) registry
-						.lookup(nextcity);
-				// Thread pool for forwarding of the paNotBoundExceptionckage.
-				reaper.execute(new Runnable() {
-					public void run() {
-						try {
-							node.forwardPacket(request, nodeListener);
-						} catch (RemoteException ex) {
-
-							try {
-								recomputeNeighbors(nextcity);
-							} catch (RemoteException e) {
-							} catch (NotBoundException e) {
-							}
+	/**
+	 * Routes an outstanding packet again after its next office went away.
+	 * 
+	 * @param packet
+	 *            Outstanding packet.
+	 */
+	private void reroute(Outstanding packet) {
+		if (!outstanding.remove(packet.request.getTrackingNumber(), packet)) {
+			return;
+		}
+		packet.timeout.cancel(false);
+		String nextcity = route(packet.request.getX(), packet.request.getY());
+		if (nextcity.equals(name)) {
+			report(NodeEvent.Type.DELIVERED, packet.request, packet.listener);
+			stage.release();
+		} else {
+			send(packet, nextcity);
+		}
+	}
 
-							eventGenerator.reportEvent(new NodeEvent(
-									"Package number " + request.trackingnumber
-											+ " lost by " + thisOfficeName
-											+ " office", request, 4));
-							try {
-								nodeListener.report(0, new NodeEvent(
-										"Package number "
-												+ request.trackingnumber
-												+ " lost by " + thisOfficeName
-												+ " office", request, 4));
-							} catch (RemoteException e) {
-							}
+	/**
+	 * Reports every packet of a batch that is still outstanding lost.
+	 * 
+	 * @param batch
+	 *            Outstanding packets.
+	 */
+	private void lostAll(List<Outstanding> batch) {
+		for (Outstanding packet : batch) {
+			if (settle(packet)) {
+				lost(packet.request, packet.listener);
+			}
+		}
+	}
 
-						} catch (NotBoundException e) {
-							// TODO Auto-generated catch block
-							
-						}
+	/**
+	 * Called by the next office to say whether it took a packet this office
+	 * sent it. Acknowledgements that do not match an outstanding packet, such
+	 * as late ones, are ignored.
+	 * 
+	 * @param trackingNumber
+	 *            Tracking number of the packet.
+	 * @param hops
+	 *            Hop count of the packet as it was received.
+	 * @param officeName
+	 *            Name of the acknowledging office.
+	 * @param ack
+	 *            Acknowledgement.
+	 */
+	public void acknowledge(long trackingNumber, int hops, String officeName,
+			GPSOfficeRef.Ack ack) {
+		contacted(officeName);
+		final Outstanding packet = outstanding.get(trackingNumber);
+		if (packet == null || !officeName.equals(packet.nextcity)
+				|| hops != packet.request.getHops() + 1) {
+			return;
+		}
+		if (ack == GPSOfficeRef.Ack.ACCEPTED) {
+			if (settle(packet)) {
+				metrics.hop(System.nanoTime() - packet.sent);
+			}
+			return;
+		}
+		// The next office is full; it is not down.
+		final String alternate = ack == GPSOfficeRef.Ack.REDIRECT
+				&& !packet.redirected ? alternateHop(packet.request,
+				packet.nextcity) : null;
+		if (alternate == null) {
+			if (settle(packet)) {
+				lost(packet.request, packet.listener);
+			}
+			return;
+		}
+		if (outstanding.remove(trackingNumber, packet)) {
+			packet.timeout.cancel(false);
+			packet.redirected = true;
+			try {
+				stage.execute(new Runnable() {
+					public void run() {
+						send(packet, alternate);
 					}
 				});
-			} catch (NotBoundException e) {
-				this.getHashMap().remove(nextcity);
-				this.getNeighNames().remove(nextcity);
-				this.getNameXY().remove(nextcity);
-				nextcity = calc.check(request.X, request.Y, this);
-				GPSOfficeRef node1 = (GPSOfficeRef) registry
-						.lookup(nextcity);
-				node1.forwardPacket(request, nodeListener);
+			} catch (RejectedExecutionException exc) {
+				stage.release();
+				if (!closed) {
+					lost(packet.request, packet.listener);
+				}
 			}
+		}
+	}
 
-		} catch (Exception e) {
+	/**
+	 * Called by the next office to acknowledge a batch of packets this office
+	 * sent it, as by acknowledge.
+	 * 
+	 * @param trackingNumbers
+	 *            Tracking numbers of the packets.
+	 * @param hops
+	 *            Hop counts of the packets as they were received.
+	 * @param officeName
+	 *            Name of the acknowledging office.
+	 * @param answers
+	 *            Acknowledgements.
+	 */
+	public void acknowledgePackets(long[] trackingNumbers, int[] hops,
+			String officeName, GPSOfficeRef.Ack[] answers) {
+		for (int i = 0; i < trackingNumbers.length; i++) {
+			acknowledge(trackingNumbers[i], hops[i], officeName, answers[i]);
+		}
+	}
+
+	/**
+	 * Ends this office's ownership of an outstanding packet and frees its
+	 * slot in the forwarding stage.
+	 * 
+	 * @param packet
+	 *            Outstanding packet.
+	 * 
+	 * @return True if the packet was still outstanding, false if something
+	 *         else had already settled it.
+	 */
+	private boolean settle(Outstanding packet) {
+		if (!outstanding.remove(packet.request.getTrackingNumber(), packet)) {
+			return false;
+		}
+		packet.timeout.cancel(false);
+		stage.release();
+		return true;
+	}
+
+	/**
+	 * Reports an event about the packet at this office to the Headquarters
+	 * and to the customer who sent the packet. One event object serves both.
+	 * The event is only queued here; the forwarding of the packet does not
+	 * wait for it to be delivered.
+	 * 
+	 * @param type
+	 *            Kind of event.
+	 * @param request
+	 *            Packet.
+	 * @param nodeListener
+	 *            Listener of the customer who sent the packet.
+	 */
+	private void report(NodeEvent.Type type, Packet request,
+			RemoteEventListener<NodeEvent> nodeListener) {
+		metrics.event(type);
+		NodeEvent event = new NodeEvent(type, name, request);
+		dispatcher.report(headquarters, event);
+		dispatcher.report(nodeListener, event);
+	}
+
+	/**
+	 * Reports that the packet was lost by this office.
+	 * 
+	 * @param request
+	 *            Packet.
+	 * @param nodeListener
+	 *            Listener of the customer who sent the packet.
+	 */
+	private void lost(Packet request,
+			RemoteEventListener<NodeEvent> nodeListener) {
+		report(NodeEvent.Type.LOST, request, nodeListener);
+	}
+
+	/**
+	 * Chooses the next hop for a package from this office's current
+	 * neighbors.
+	 * 
+	 * @param x
+	 *            Destination X coordinate.
+	 * @param y
+	 *            Destination Y coordinate.
+	 * 
+	 * @return Name of the neighbor to forward the package to, or this
+	 *         office's name if the package is to be delivered from here.
+	 */
+	String route(double x, double y) {
+		long start = System.nanoTime();
+		NeighborTable table = neighbors.get();
+		int hop = nextHops.nextHop(table, X, Y, x, y);
+		metrics.routing(System.nanoTime() - start);
+		return hop < 0 ? name : table.name(hop);
+	}
+
+	/**
+	 * Finds another neighbor to send the packet to when the chosen one is
+	 * saturated. Only a neighbor nearer to the destination than this office
+	 * is chosen, so the packet still makes progress.
+	 * 
+	 * @param request
+	 *            Packet.
+	 * @param exclude
+	 *            Name of the saturated neighbor.
+	 * 
+	 * @return Name of the nearest other neighbor to the destination, or null
+	 *         if there is none nearer than this office.
+	 */
+	private String alternateHop(Packet request, String exclude) {
+		NeighborTable table = neighbors.get();
+		int hop = table.nextHop(request.getX(), request.getY(), X, Y,
+				table.indexOf(exclude));
+		return hop < 0 ? null : table.name(hop);
+	}
+
+	/**
+	 * Returns the transit delay in milliseconds of the link from this office
+	 * to the given neighbor. It is the value of the system property
+	 * GPSOffice.delay.&lt;neighbor&gt; if set, else this office's delay.
+	 * 
+	 * @param neighbor
+	 *            Neighbor's name.
+	 * 
+	 * @return long
+	 */
+	private long linkDelay(String neighbor) {
+		Long delay = linkDelays.get(neighbor);
+		if (delay == null) {
+			delay = Long.getLong(DELAY_PROPERTY + "." + neighbor, officeDelay);
+			linkDelays.put(neighbor, delay);
 		}
-		return;
+		return delay;
 	}
 
 	/**
-	 * This function re computes the neighbors of a GPS office with other GPS
-	 * offices in case of failures in the system.
+	 * This function repairs the neighbor tables after the given office has
+	 * failed. Only the offices which, according to this office's view, had the
+	 * failed office as a neighbor are told about the failure, and each of them
+	 * picks a replacement from its own view. So the cost of a repair grows
+	 * with the size of the failed office's neighborhood, not with the size of
+	 * the system.
+	 * 
+	 * The failed office stays bound, so it is kept as a suspect and put back
+	 * if it answers again. Callers must have confirmed the failure first.
 	 * 
 	 * @param String
 	 *            nextcity
 	 * 
 	 * @return void
+	 */
+	public void recomputeNeighbors(String nextcity) {
+
+		List<SpatialIndex.Entry> affected = index.reverseNearest(nextcity,
+				NEIGHBORS);
+		forgetOffice(nextcity);
+		suspects.add(nextcity);
+		for (SpatialIndex.Entry entry : affected) {
+			try {
+				GPSOfficeRef office = (GPSOfficeRef) registry
+						.lookup(entry.name);
+				office.neighborFailed(nextcity);
+			} catch (NotBoundException exc) {
+			} catch (RemoteException exc) {
+			}
+		}
+	}
+
+	/**
+	 * Told by another office that the given office has failed. This office
+	 * checks for itself, in the background, and only if the office does not
+	 * answer it either is the office removed from this office's view and
+	 * replaced if it was one of this office's neighbors. The failure is not
+	 * passed on to other offices.
+	 * 
+	 * @param String
+	 *            officeName
+	 * 
+	 * @return void
 	 * 
 	 * @exception RemoteException
 	 *                Thrown when a remote error occurs.
-	 * @exception NotBoundException
-	 *                Thrown when a bound error occurs.
 	 */
-	public void recomputeNeighbors(String nextcity) throws RemoteException,
-			NotBoundException {
+	public void neighborFailed(String officeName) throws RemoteException {
+		verifyFailure(officeName, false);
+	}
 
-		this.getHashMap().clear();
-		this.getNameXY().clear();
-		this.getNeighNames().clear();
-		for (int i = 0; i < registry.list().size(); i++) {
-			if (registry.list().get(i).equals(nextcity)) {
-				continue;
+	/**
+	 * Checks in the background whether an office that failed a call is really
+	 * gone, by looking it up and asking it for its location. If it answers,
+	 * the failure was passing and only its cached reference is dropped. If it
+	 * is no longer bound, it is removed as unbound. Otherwise it is removed
+	 * as failed and kept as a suspect.
+	 * 
+	 * @param officeName
+	 *            Name of the office.
+	 * @param repair
+	 *            True to tell the offices which had it as a neighbor, as
+	 *            recomputeNeighbors does.
+	 */
+	private void verifyFailure(final String officeName, final boolean repair) {
+		if (closed || officeName.equals(name)) {
+			return;
+		}
+		topology.execute(new Runnable() {
+			public void run() {
+				try {
+					((GPSOfficeRef) registry.lookup(officeName)).describe();
+					stubs.remove(officeName);
+					forgetSender(officeName);
+					return;
+				} catch (NotBoundException exc) {
+					officeUnbound(officeName);
+					return;
+				} catch (RemoteException exc) {
+				}
+				if (repair) {
+					recomputeNeighbors(officeName);
+				} else {
+					forgetOffice(officeName);
+					suspects.add(officeName);
+				}
 			}
-			GPSOfficeRef someNode = (GPSOfficeRef) registry.lookup(registry
-					.list().get(i));
-			someNode.getHashMap().clear();
-			someNode.getNameXY().clear();
-			someNode.getNeighNames().clear();
-			this.neighbors(someNode);
-			someNode.neighbors(this);
+		});
+	}
+
+	/**
+	 * Notes that an office was heard from, and puts it back if it was a
+	 * suspect.
+	 * 
+	 * @param officeName
+	 *            Name of the office.
+	 */
+	private void contacted(String officeName) {
+		if (!suspects.isEmpty() && suspects.contains(officeName)) {
+			restore(officeName);
 		}
 	}
 
 	/**
-	 * Creates a delay of 3 seconds for the thread.
+	 * Asks a suspect office, in the background, whether it is back, and if so
+	 * puts it back in the spatial index. A suspect which is no longer bound
+	 * is dropped.
+	 * 
+	 * @param officeName
+	 *            Name of the office.
 	 */
-	private void slowDown() {
-		try {
-			Thread.sleep(3000L);
-		} catch (InterruptedException exc) {
+	private void restore(final String officeName) {
+		if (closed) {
+			return;
 		}
+		topology.execute(new Runnable() {
+			public void run() {
+				if (!suspects.contains(officeName)) {
+					return;
+				}
+				OfficeDescriptor office;
+				try {
+					office = ((GPSOfficeRef) registry.lookup(officeName))
+							.describe();
+				} catch (NotBoundException exc) {
+					suspects.remove(officeName);
+					return;
+				} catch (RemoteException exc) {
+					return;
+				}
+				if (suspects.remove(officeName)) {
+					addOffice(office);
+				}
+			}
+		});
 	}
 
 	/**
@@ -509,4 +1598,33 @@ public class GPSOffice implements GPSOfficeRef {
 		return eventGenerator.addListener(listener);
 	}
 
+	/**
+	 * Stops this office at once, as if its process had died: its threads stop,
+	 * the packets it holds are dropped and it stops taking calls. The office
+	 * is not unbound; the other offices find out when they next call it.
+	 */
+	public void shutdown() {
+		closed = true;
+		metrics.unregister();
+		transport.close();
+		timer.shutdownNow();
+		topology.shutdownNow();
+		acks.shutdownNow();
+		stage.shutdown();
+		// Packets being forwarded still report their events.
+		try {
+			stage.awaitTermination(SHUTDOWN_WAIT);
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		dispatcher.shutdown();
+		if (officeId != null) {
+			officeId.release(false);
+		}
+		try {
+			UnicastRemoteObject.unexportObject(this, true);
+		} catch (NoSuchObjectException exc) {
+		}
+	}
+
 }
@@ -2,6 +2,7 @@ import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import edu.rit.ds.Lease;
 import edu.rit.ds.RemoteEventListener;
 import edu.rit.ds.registry.NotBoundException;
@@ -41,6 +42,21 @@ public interface GPSOfficeRef extends Remote {
 	 */
 	public void neighbors(GPSOfficeRef gpsOffice) throws RemoteException;
 
+	/**
+	 * Tells this GPS office that another office has failed. This office
+	 * removes the failed office from its view and, if it was one of its
+	 * neighbors, picks a replacement from the offices it already knows.
+	 * 
+	 * @return void
+	 * 
+	 * @param String
+	 *            officeName
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void neighborFailed(String officeName) throws RemoteException;
+
 	/**
 	 * Accessor to get the name of the GPS office.
 	 * 
@@ -51,6 +67,17 @@ public interface GPSOfficeRef extends Remote {
 	 */
 	public String getName() throws RemoteException;
 
+	/**
+	 * Function which returns the name, location and neighbor table version of
+	 * the GPS office in a single remote call.
+	 * 
+	 * @return OfficeDescriptor
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public OfficeDescriptor describe() throws RemoteException;
+
 	/**
 	 * Function which returns the neighbors and theirs corresponding distances
 	 * from the destination for a GPS office.
@@ -84,20 +111,90 @@ public interface GPSOfficeRef extends Remote {
 	public HashMap<String, Double[]> getNameXY() throws RemoteException;
 
 	/**
-	 * Function to forward the package to its next neighbor.
+	 * Answer an office gives for a packet sent to it. ACCEPTED means the
+	 * office now owns the packet; SATURATED means it refused the packet;
+	 * REDIRECT means it refused the packet and the sender should try another
+	 * neighbor.
+	 */
+	public enum Ack {
+		ACCEPTED, SATURATED, REDIRECT
+	}
+
+	/**
+	 * Function to forward the package to its next neighbor. The office only
+	 * queues the packet and returns; it tells the sender whether it took the
+	 * packet by calling acknowledge on the sender afterwards.
 	 * 
 	 * @return void
 	 * 
-	 * @param Customer
-	 *            query
+	 * @param Packet
+	 *            request
 	 * 
 	 * @exception RemoteException
 	 *                Thrown if a remote error occurred.
 	 */
-	public void forwardPacket(Customer request,
+	public void forwardPacket(Packet request,
 			RemoteEventListener<NodeEvent> listener) throws RemoteException,
 			NotBoundException;
 
+	/**
+	 * Function to forward a batch of packages to this office in one call. The
+	 * batch is taken in as a unit and acknowledged with one call to
+	 * acknowledgePackets on the sender.
+	 * 
+	 * @return void
+	 * 
+	 * @param List
+	 *            <Packet> requests
+	 * @param List
+	 *            <RemoteEventListener<NodeEvent>> listeners Listener of each
+	 *            packet, in the same order.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void forwardPackets(List<Packet> requests,
+			List<RemoteEventListener<NodeEvent>> listeners)
+			throws RemoteException;
+
+	/**
+	 * Function called by the office a packet was forwarded to, to say whether
+	 * it took the packet. Until then the packet belongs to the sender.
+	 * 
+	 * @return void
+	 * 
+	 * @param long trackingNumber
+	 * @param int hops Hop count of the packet as it was received.
+	 * @param String
+	 *            officeName Name of the acknowledging office.
+	 * @param Ack
+	 *            ack
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void acknowledge(long trackingNumber, int hops, String officeName,
+			Ack ack) throws RemoteException;
+
+	/**
+	 * Function which acknowledges a batch of packets in one call. Element i
+	 * of each array belongs to the same packet.
+	 * 
+	 * @return void
+	 * 
+	 * @param long[] trackingNumbers
+	 * @param int[] hops
+	 * @param String
+	 *            officeName Name of the acknowledging office.
+	 * @param Ack
+	 *            [] acks
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void acknowledgePackets(long[] trackingNumbers, int[] hops,
+			String officeName, Ack[] acks) throws RemoteException;
+
 	/**
 	 * Adds a listener for node arrivals.
 	 * 
@@ -121,4 +218,24 @@ public interface GPSOfficeRef extends Remote {
 	 *                Thrown if a remote error occurred.
 	 */
 	public long giveTrackingNumber() throws RemoteException;
+
+	/**
+	 * Function which sends a new package from this GPS office. The office
+	 * makes the package's tracking number itself and returns it.
+	 * 
+	 * @return long
+	 * 
+	 * @param Double
+	 *            X
+	 * @param Double
+	 *            Y
+	 * @param RemoteEventListener
+	 *            <NodeEvent> listener
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public long submitPacket(Double X, Double Y,
+			RemoteEventListener<NodeEvent> listener) throws RemoteException,
+			NotBoundException;
 }
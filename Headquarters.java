@@ -4,25 +4,51 @@ import edu.rit.ds.registry.RegistryEvent;
 import edu.rit.ds.registry.RegistryEventFilter;
 import edu.rit.ds.registry.RegistryEventListener;
 import edu.rit.ds.registry.RegistryProxy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Iterator;
 import java.util.List;
 
 /**
- * Class Headquarters prints the messages of all the packages
- * in transit of all the customers.
+ * Class Headquarters follows all the packages in transit of all the
+ * customers. The events of every office go through an EventAggregator,
+ * which prints a one line summary per window instead of every event.
  * 
  * Usage: java Headquarters host port
  * host = Registry Server's host
  * port = Registry Server's port
+ * 
+ * The output is tuned with system properties: Headquarters.window (length
+ * of a summary window in milliseconds), Headquarters.sample (share of the
+ * packages whose events are printed one by one, 0 to 1) and
+ * Headquarters.log (file those events are appended to instead of the
+ * standard output).
+ * 
+ * If the system property Headquarters.journal names a directory, every event
+ * is also kept in an EventJournal there, with segments of
+ * Headquarters.journal.segment bytes. A tracking number typed on the
+ * standard input then prints the history of that package.
  */
 public class Headquarters {
 
+	private static final String WINDOW_PROPERTY = "Headquarters.window";
+	private static final String SAMPLE_PROPERTY = "Headquarters.sample";
+	private static final String LOG_PROPERTY = "Headquarters.log";
+	private static final String JOURNAL_PROPERTY = "Headquarters.journal";
+	private static final String SEGMENT_PROPERTY = "Headquarters.journal.segment";
+
 	private static RegistryProxy registry;
 	private static RegistryEventListener registryListener;
 	private static RegistryEventFilter registryFilter;
 	private static RemoteEventListener<NodeEvent> nodeListener;
+	private static EventAggregator aggregator;
+	private static EventJournal journal;
 
 	public static void main(String[] args) throws Exception {
 		
@@ -34,6 +60,36 @@ public class Headquarters {
 		// Get proxy for the Registry Server.
 		registry = new RegistryProxy(host, port);
 
+		// Summarize the events of all the offices.
+		double sample = Double.parseDouble(System.getProperty(
+				SAMPLE_PROPERTY, "0"));
+		PrintWriter raw = null;
+		if (sample > 0) {
+			String log = System.getProperty(LOG_PROPERTY);
+			raw = log == null ? new PrintWriter(System.out) : new PrintWriter(
+					new FileWriter(log, true));
+		}
+		aggregator = new EventAggregator(Long.getLong(WINDOW_PROPERTY, 5000L),
+				sample, System.out, raw);
+		aggregator.start();
+
+		// Keep every event, if asked to.
+		String directory = System.getProperty(JOURNAL_PROPERTY);
+		if (directory != null) {
+			journal = new EventJournal(new File(directory), Long.getLong(
+					SEGMENT_PROPERTY, 64L << 20));
+			System.out.println("Journal has " + journal.size()
+					+ " events of " + journal.packages() + " packages");
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						journal.close();
+					} catch (IOException exc) {
+					}
+				}
+			});
+		}
+
 		// Export a remote event listener object for receiving notifications
 		// from the Registry Server.
 		registryListener = new RegistryEventListener() {
@@ -50,7 +106,14 @@ public class Headquarters {
 		 */		
 		nodeListener = new RemoteEventListener<NodeEvent>() {
 			public void report(long seqnum, NodeEvent event) {
-				System.out.println(event.officename);
+				aggregator.accept(event);
+				if (journal != null) {
+					try {
+						journal.append(event);
+					} catch (IOException exc) {
+						System.err.println("Journal: " + exc);
+					}
+				}
 			}
 		};
 		UnicastRemoteObject.exportObject(nodeListener, 0);
@@ -63,12 +126,47 @@ public class Headquarters {
 		registry.addEventListener(registryListener, registryFilter);
 
 		// Tell all existing GPSOffice objects to notify the customer of requests.
-		List<String> offices = registry.list();
+		List<String> offices = registry.list("GPSOffice");
 		Iterator<String> officeObjects = offices.iterator();
 		while (officeObjects.hasNext()) {
 			String someOffice = officeObjects.next();
 			listenOfficeEvents(someOffice);			
 		}
+
+		if (journal != null) {
+			lookups();
+		}
+	}
+
+	/**
+	 * Prints the history of each package whose tracking number is typed on
+	 * the standard input, until the input ends.
+	 */
+	private static void lookups() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				System.in));
+		for (String line; (line = in.readLine()) != null;) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			long trackingNumber;
+			try {
+				trackingNumber = Long.parseLong(line);
+			} catch (NumberFormatException exc) {
+				System.err.println("Headquarters: " + line
+						+ " is not a tracking number");
+				continue;
+			}
+			long start = System.nanoTime();
+			List<NodeEvent> history = journal.history(trackingNumber);
+			long micros = (System.nanoTime() - start) / 1000;
+			for (NodeEvent event : history) {
+				System.out.println(event);
+			}
+			System.out.println(history.size() + " events of package "
+					+ trackingNumber + " found in " + micros + " us");
+		}
 	}
 
 	
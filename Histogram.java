@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class Histogram counts non-negative values, such as latencies in
+ * nanoseconds, in log-linear buckets: every power of two is split into 16
+ * equal buckets, so a percentile read from the histogram is within about 6%
+ * of the true value whatever its magnitude. Recording a value takes no lock,
+ * so many threads can record into one histogram at once.
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            Value.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the mean of the values recorded, or 0 if there are none.
+	 */
+	public double mean() {
+		long n = count.sum();
+		return n == 0 ? 0.0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the largest value recorded, or 0 if there are none.
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the given percentile of the values recorded, as the upper bound
+	 * of the bucket it falls in, or 0 if there are none.
+	 *
+	 * @param p
+	 *            Percentile, from 0 to 1.
+	 */
+	public long percentile(double p) {
+		long n = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(p * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the bucket a value falls in. Values below SUB_BUCKETS have a
+	 * bucket each; above that, the bucket is the power of two and the next
+	 * SUB_BITS bits of the value.
+	 */
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the largest value that falls in a bucket.
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
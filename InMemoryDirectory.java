@@ -0,0 +1,154 @@
+import java.rmi.Remote;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.rit.ds.registry.AlreadyBoundException;
+import edu.rit.ds.registry.NotBoundException;
+
+/**
+ * Class InMemoryDirectory is a directory kept in one JVM, standing in for the
+ * Registry Server when many GPS offices run in one process. Objects are
+ * handed out as bound, so calls between offices are plain method calls.
+ *
+ * Watchers are told about changes by one background thread, in the order the
+ * changes happen, as the Registry Server tells its listeners.
+ */
+public class InMemoryDirectory implements Directory {
+
+	/**
+	 * Class Binding is one bound object and the type it was bound as.
+	 */
+	private static class Binding {
+		final Remote object;
+		final Class<?> type;
+
+		Binding(Remote object, Class<?> type) {
+			this.object = object;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Class Watch is one watcher and the type it watches.
+	 */
+	private static class Watch {
+		final String type;
+		final Watcher watcher;
+
+		Watch(String type, Watcher watcher) {
+			this.type = type;
+			this.watcher = watcher;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Binding> bindings = new ConcurrentHashMap<String, Binding>();
+	private final CopyOnWriteArrayList<Watch> watches = new CopyOnWriteArrayList<Watch>();
+	private final ExecutorService events = Executors.newSingleThreadExecutor();
+
+	public List<String> list() {
+		return new ArrayList<String>(bindings.keySet());
+	}
+
+	public List<String> list(String type) {
+		ArrayList<String> names = new ArrayList<String>();
+		for (String name : bindings.keySet()) {
+			Binding binding = bindings.get(name);
+			if (binding != null && isType(binding.type, type)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	public Remote lookup(String name) throws NotBoundException {
+		Binding binding = bindings.get(name);
+		if (binding == null) {
+			throw new NotBoundException(name);
+		}
+		return binding.object;
+	}
+
+	public void bind(String name, Remote object) throws AlreadyBoundException {
+		Binding binding = new Binding(wrap(name, object), object.getClass());
+		if (bindings.putIfAbsent(name, binding) != null) {
+			throw new AlreadyBoundException();
+		}
+		report(name, binding.type, true);
+	}
+
+	public void unbind(String name) throws NotBoundException {
+		Binding binding = bindings.remove(name);
+		if (binding == null) {
+			throw new NotBoundException(name);
+		}
+		report(name, binding.type, false);
+	}
+
+	public void watch(String type, Watcher watcher) {
+		watches.add(new Watch(type, watcher));
+	}
+
+	/**
+	 * Stops telling watchers about changes.
+	 */
+	public void close() {
+		events.shutdown();
+	}
+
+	/**
+	 * Returns the object to hand out for an object being bound. This one
+	 * hands out the object itself; a subclass can put something in between,
+	 * for instance to inject faults.
+	 *
+	 * @param name
+	 *            Object's name.
+	 * @param object
+	 *            Object being bound.
+	 */
+	protected Remote wrap(String name, Remote object) {
+		return object;
+	}
+
+	private void report(final String name, final Class<?> type,
+			final boolean bound) {
+		events.execute(new Runnable() {
+			public void run() {
+				for (Watch watch : watches) {
+					if (!isType(type, watch.type)) {
+						continue;
+					}
+					try {
+						if (bound) {
+							watch.watcher.bound(name);
+						} else {
+							watch.watcher.unbound(name);
+						}
+					} catch (RuntimeException exc) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns true if the class, one of its superclasses or one of their
+	 * interfaces has the given name.
+	 */
+	private static boolean isType(Class<?> c, String type) {
+		for (; c != null; c = c.getSuperclass()) {
+			if (c.getName().equals(type)) {
+				return true;
+			}
+			for (Class<?> i : c.getInterfaces()) {
+				if (isType(i, type)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
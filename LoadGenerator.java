@@ -0,0 +1,364 @@
+import edu.rit.ds.registry.RegistryProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Class LoadGenerator sends many packages through the GPS tracking system and
+ * reports the throughput, the loss rate and the end-to-end latency
+ * percentiles when the run ends. The packages are sent and tracked by one
+ * GPSClient, so they all share one exported event listener.
+ *
+ * In open-loop mode packages are sent at the target rate whatever happens to
+ * the earlier ones, and each package's latency is measured from the time it
+ * was due to be sent. In closed-loop mode at most concurrency packages are in
+ * the system at once; a new package is sent when an earlier one is delivered
+ * or lost, no faster than the target rate.
+ *
+ * Usage: java Customer -load host port count rate host = Registry Server's
+ * host port = Registry Server's port count = Number of packages rate = Target
+ * packages per second, 0 for as fast as possible
+ *
+ * The run is tuned with system properties: LoadGenerator.mode (open or
+ * closed), LoadGenerator.concurrency, LoadGenerator.distribution (uniform,
+ * hotspot or gaussian), LoadGenerator.origins (comma-separated office names;
+ * default all offices), LoadGenerator.seed, LoadGenerator.deadline (how
+ * long, in milliseconds, to wait for each package's DELIVERED or LOST event)
+ * and LoadGenerator.timeout (how long to wait for the last packages).
+ *
+ * A package with no final event by its deadline is counted as expired, and in
+ * closed-loop mode its place goes to the next package, so a package whose
+ * events never come cannot hold the run up.
+ */
+public class LoadGenerator {
+
+	private static final String MODE_PROPERTY = "LoadGenerator.mode";
+	private static final String CONCURRENCY_PROPERTY = "LoadGenerator.concurrency";
+	private static final String DISTRIBUTION_PROPERTY = "LoadGenerator.distribution";
+	private static final String ORIGINS_PROPERTY = "LoadGenerator.origins";
+	private static final String SEED_PROPERTY = "LoadGenerator.seed";
+	private static final String TIMEOUT_PROPERTY = "LoadGenerator.timeout";
+	private static final String DEADLINE_PROPERTY = "LoadGenerator.deadline";
+
+	/**
+	 * Share of the packages sent to the hotspots, the number of hotspots and
+	 * the number of Gaussian clusters. A cluster's standard deviation is this
+	 * fraction of the extent of the offices.
+	 */
+	private static final double HOTSPOT_SHARE = 0.8;
+	private static final int HOTSPOTS = 3;
+	private static final int CLUSTERS = 5;
+	private static final double CLUSTER_SPREAD = 0.05;
+
+	/**
+	 * Where destinations are drawn from.
+	 */
+	public static enum Distribution {
+
+		/**
+		 * Uniformly over the box around all the offices.
+		 */
+		UNIFORM,
+
+		/**
+		 * Most packages to a few offices, the rest uniformly.
+		 */
+		HOTSPOT,
+
+		/**
+		 * Gaussian clusters around a few offices.
+		 */
+		GAUSSIAN
+	}
+
+	private final Directory registry;
+	private final String[] origins;
+	private final double[] officeX;
+	private final double[] officeY;
+	private final double minX, maxX, minY, maxY;
+	private final Distribution distribution;
+	private final Random random;
+	private final int[] centers;
+
+	private final boolean closedLoop;
+	private final int concurrency;
+	private final int count;
+	private final double rate;
+	private final long deadline;
+
+	private final Semaphore permits;
+	private final Histogram latencies = new Histogram();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong hops = new AtomicLong();
+	private volatile long lastFinal;
+
+	/**
+	 * Creates a new load generator.
+	 *
+	 * @param registry
+	 *            Registry the offices are bound in.
+	 * @param count
+	 *            Number of packages.
+	 * @param rate
+	 *            Target packages per second, 0 for as fast as possible.
+	 *
+	 * @exception Exception
+	 *                Thrown if the offices could not be found.
+	 */
+	public LoadGenerator(Directory registry, int count, double rate)
+			throws Exception {
+		this.registry = registry;
+		this.count = count;
+		this.rate = rate;
+		closedLoop = "closed".equalsIgnoreCase(System.getProperty(
+				MODE_PROPERTY, "open"));
+		concurrency = Integer.getInteger(CONCURRENCY_PROPERTY, 64);
+		distribution = Distribution.valueOf(System.getProperty(
+				DISTRIBUTION_PROPERTY, "uniform").toUpperCase());
+		random = new Random(Long.getLong(SEED_PROPERTY,
+				System.currentTimeMillis()));
+		deadline = Long.getLong(DEADLINE_PROPERTY, 30000L);
+		permits = new Semaphore(concurrency);
+
+		List<String> names;
+		String list = System.getProperty(ORIGINS_PROPERTY);
+		if (list != null) {
+			names = Arrays.asList(list.split(","));
+		} else {
+			names = registry.list("GPSOffice");
+		}
+		ArrayList<String> found = new ArrayList<String>();
+		ArrayList<OfficeDescriptor> places = new ArrayList<OfficeDescriptor>();
+		for (String name : names) {
+			try {
+				GPSOfficeRef office = (GPSOfficeRef) registry.lookup(name
+						.trim());
+				places.add(office.describe());
+				found.add(name.trim());
+			} catch (Exception exc) {
+				System.err.println("Skipping " + name + ": " + exc);
+			}
+		}
+		if (found.isEmpty()) {
+			throw new IllegalArgumentException("No GPS offices found");
+		}
+		origins = found.toArray(new String[found.size()]);
+		officeX = new double[places.size()];
+		officeY = new double[places.size()];
+		double x0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE;
+		double y0 = Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for (int i = 0; i < places.size(); i++) {
+			officeX[i] = places.get(i).x;
+			officeY[i] = places.get(i).y;
+			x0 = Math.min(x0, officeX[i]);
+			x1 = Math.max(x1, officeX[i]);
+			y0 = Math.min(y0, officeY[i]);
+			y1 = Math.max(y1, officeY[i]);
+		}
+		minX = x0;
+		maxX = x1;
+		minY = y0;
+		maxY = y1;
+		centers = new int[distribution == Distribution.HOTSPOT ? HOTSPOTS
+				: CLUSTERS];
+		for (int i = 0; i < centers.length; i++) {
+			centers[i] = random.nextInt(officeX.length);
+		}
+	}
+
+	/**
+	 * Runs the load and prints the report.
+	 *
+	 * @exception Exception
+	 *                Thrown if the listener could not be exported.
+	 */
+	public void run() throws Exception {
+		GPSClient client = new GPSClient(registry, concurrency);
+		ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1);
+		deadlines.setRemoveOnCancelPolicy(true);
+		long start = System.nanoTime();
+		int submitted = 0;
+		for (int i = 0; i < count; i++) {
+			if (closedLoop
+					&& !permits.tryAcquire(deadline, TimeUnit.MILLISECONDS)) {
+				System.err.println("No package finished in " + deadline
+						+ " ms; stopping after " + i + " packages");
+				break;
+			}
+			long due = rate > 0 ? start + (long) (i * 1e9 / rate) : System
+					.nanoTime();
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			final long sent = closedLoop ? System.nanoTime() : due;
+			double[] destination = destination();
+			final CompletableFuture<NodeEvent> future = client.submit(
+					origins[i % origins.length], destination[0],
+					destination[1]);
+			final ScheduledFuture<?> expiry = deadlines.schedule(
+					new Runnable() {
+						public void run() {
+							future.completeExceptionally(new TimeoutException(
+									"No final event in " + deadline + " ms"));
+						}
+					}, deadline, TimeUnit.MILLISECONDS);
+			future.whenComplete(new BiConsumer<NodeEvent, Throwable>() {
+				public void accept(NodeEvent event, Throwable exc) {
+					expiry.cancel(false);
+					finish(event, exc, sent);
+				}
+			});
+			submitted++;
+		}
+		long sendEnd = System.nanoTime();
+
+		long timeout = System.currentTimeMillis()
+				+ Long.getLong(TIMEOUT_PROPERTY, 60000L);
+		while (delivered.get() + lost.get() + rejected.get()
+				+ expired.get() < submitted
+				&& System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		deadlines.shutdownNow();
+		client.close();
+		long end = Math.max(lastFinal, sendEnd);
+		report(submitted, (end - start) / 1e9);
+	}
+
+	/**
+	 * Records how a package ended.
+	 */
+	private void finish(NodeEvent event, Throwable exc, long sent) {
+		long now = System.nanoTime();
+		if (exc == null) {
+			lastFinal = now;
+			delivered.incrementAndGet();
+			hops.addAndGet(event.hops);
+			latencies.record(now - sent);
+		} else if (exc instanceof PacketLostException) {
+			lastFinal = now;
+			lost.incrementAndGet();
+		} else if (exc instanceof TimeoutException) {
+			expired.incrementAndGet();
+		} else {
+			rejected.incrementAndGet();
+		}
+		if (closedLoop) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Draws a destination from the distribution.
+	 */
+	private double[] destination() {
+		double spanX = maxX - minX;
+		double spanY = maxY - minY;
+		synchronized (random) {
+			switch (distribution) {
+			case HOTSPOT:
+				if (random.nextDouble() < HOTSPOT_SHARE) {
+					int c = centers[random.nextInt(centers.length)];
+					return new double[] { officeX[c], officeY[c] };
+				}
+				break;
+			case GAUSSIAN:
+				int c = centers[random.nextInt(centers.length)];
+				return new double[] {
+						officeX[c] + random.nextGaussian() * CLUSTER_SPREAD
+								* spanX,
+						officeY[c] + random.nextGaussian() * CLUSTER_SPREAD
+								* spanY };
+			default:
+				break;
+			}
+			return new double[] { minX + random.nextDouble() * spanX,
+					minY + random.nextDouble() * spanY };
+		}
+	}
+
+	/**
+	 * Prints the results of the run.
+	 */
+	private void report(int submitted, double seconds) {
+		long done = delivered.get();
+		long failed = lost.get();
+		long late = expired.get();
+		long total = submitted - rejected.get();
+		System.out.println("Mode " + (closedLoop ? "closed" : "open")
+				+ ", " + distribution.toString().toLowerCase() + ", "
+				+ origins.length + " origins, " + submitted + " packages, "
+				+ seconds + " s");
+		System.out.println("Submitted " + total + ", rejected "
+				+ rejected.get() + ", delivered " + done + ", lost " + failed
+				+ ", expired " + late + ", unfinished "
+				+ (total - done - failed - late));
+		System.out.printf("Throughput %.1f packages/s, loss rate %.4f%n", done
+				/ seconds, total == 0 ? 0.0 : (double) (total - done) / total);
+		if (latencies.count() > 0) {
+			System.out.printf(
+					"Latency ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f,"
+							+ " mean hops %.2f%n",
+					latencies.percentile(0.50) / 1e6,
+					latencies.percentile(0.90) / 1e6,
+					latencies.percentile(0.99) / 1e6,
+					latencies.percentile(0.999) / 1e6, latencies.max() / 1e6,
+					(double) hops.get() / done);
+		}
+	}
+
+	/**
+	 * Load generator main program.
+	 *
+	 * @param String
+	 *            [] args
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4) {
+			usage();
+		}
+		Directory registry;
+		int count;
+		double rate;
+		try {
+			registry = new RegistryDirectory(new RegistryProxy(args[0],
+					Integer.parseInt(args[1])));
+			count = Integer.parseInt(args[2]);
+			rate = Double.parseDouble(args[3]);
+		} catch (NumberFormatException exc) {
+			System.err.println(exc.getMessage() + " cannot be parsed");
+			usage();
+			return;
+		}
+		new LoadGenerator(registry, count, rate).run();
+		System.exit(0);
+	}
+
+	/**
+	 * Print a usage message and exit.
+	 */
+	private static void usage() {
+		System.err
+				.println("Usage: java Customer -load <host> <port> <count> <rate>");
+		System.err.println("<host> = Registry Server's host");
+		System.err.println("<port> = Registry Server's port (integer)");
+		System.err.println("<count> = Number of packages (integer)");
+		System.err
+				.println("<rate> = Packages per second (double), 0 for no limit");
+		System.exit(1);
+	}
+}
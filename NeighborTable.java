@@ -0,0 +1,148 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class NeighborTable is an immutable snapshot of a GPS office's neighbors:
+ * their names and the X and Y coordinates of their locations, kept in
+ * parallel arrays for the routing kernel. An office replaces its table as a
+ * whole when its neighbors change, so a reader always sees one consistent
+ * table. Every new table of an office has a higher version than the one before.
+ */
+public class NeighborTable {
+
+	/**
+	 * A table with no neighbors.
+	 */
+	public static final NeighborTable EMPTY = new NeighborTable(new String[0],
+			new double[0], new double[0], 0L);
+
+	private final String[] names;
+	private final double[] x;
+	private final double[] y;
+	private final long version;
+
+	private NeighborTable(String[] names, double[] x, double[] y, long version) {
+		this.names = names;
+		this.x = x;
+		this.y = y;
+		this.version = version;
+	}
+
+	/**
+	 * Creates a neighbor table from spatial index entries.
+	 * 
+	 * @param entries
+	 *            Neighbors, in the order they are to be kept.
+	 * @param version
+	 *            Version of the new table.
+	 * 
+	 * @return NeighborTable
+	 */
+	public static NeighborTable of(List<SpatialIndex.Entry> entries,
+			long version) {
+		int k = entries.size();
+		String[] names = new String[k];
+		double[] x = new double[k];
+		double[] y = new double[k];
+		for (int i = 0; i < k; i++) {
+			SpatialIndex.Entry entry = entries.get(i);
+			names[i] = entry.name;
+			x[i] = entry.x;
+			y[i] = entry.y;
+		}
+		return new NeighborTable(names, x, y, version);
+	}
+
+	/**
+	 * Returns this table's version.
+	 */
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * Returns true if the given table holds the same neighbors at the same
+	 * locations, in the same order, whatever its version.
+	 */
+	public boolean sameNeighbors(NeighborTable other) {
+		return Arrays.equals(names, other.names) && Arrays.equals(x, other.x)
+				&& Arrays.equals(y, other.y);
+	}
+
+	/**
+	 * Returns the number of neighbors.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the name of the neighbor at the given index.
+	 */
+	public String name(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Returns the X coordinate of the neighbor at the given index.
+	 */
+	public double x(int i) {
+		return x[i];
+	}
+
+	/**
+	 * Returns the Y coordinate of the neighbor at the given index.
+	 */
+	public double y(int i) {
+		return y[i];
+	}
+
+	/**
+	 * Returns the squared distance from the given point to the farthest
+	 * neighbor in the table, or 0 if the table is empty.
+	 */
+	public double farthestDistanceSq(double px, double py) {
+		double farthest = 0.0;
+		for (int i = 0; i < names.length; i++) {
+			double dx = x[i] - px;
+			double dy = y[i] - py;
+			farthest = Math.max(farthest, dx * dx + dy * dy);
+		}
+		return farthest;
+	}
+
+	/**
+	 * Returns the index of the given neighbor, or -1 if it is not in the table.
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Chooses the next hop for a package, as RoutingKernel.nextHop does.
+	 * 
+	 * @param destX
+	 *            Destination X coordinate.
+	 * @param destY
+	 *            Destination Y coordinate.
+	 * @param selfX
+	 *            This office's X coordinate.
+	 * @param selfY
+	 *            This office's Y coordinate.
+	 * @param exclude
+	 *            Index of a neighbor not to choose, or -1.
+	 * 
+	 * @return Index of the chosen neighbor, or -1 if the package is to be
+	 *         delivered from this office.
+	 */
+	public int nextHop(double destX, double destY, double selfX, double selfY,
+			int exclude) {
+		return RoutingKernel.nextHop(destX, destY, selfX, selfY, x, y,
+				names.length, exclude);
+	}
+}
@@ -0,0 +1,271 @@
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class NextHopCache remembers the next hop decisions of a GPS office, keyed
+ * by the grid cell the destination falls in, so that packages bound for the
+ * same area do not have to be routed from scratch.
+ * 
+ * A decision is only cached for a cell if it is the same for every point of
+ * the cell: at each corner of the cell the chosen office must be strictly, and
+ * by a safe margin, nearer than every other candidate. Distances differ
+ * linearly across the cell, so the choice then holds in the whole cell and a
+ * cached answer is always the one the routing kernel would give. Cells where
+ * the answer changes are routed every time.
+ * 
+ * The entries made from one version of the neighbor table form a generation;
+ * when a newer table is seen, a fresh, empty generation replaces the old one.
+ * A generation is a fixed number of sets of 8 entries each, and a full set
+ * evicts an entry with the CLOCK (second chance) policy. Each set is guarded
+ * by one of a number of striped locks, so concurrent lookups rarely meet.
+ */
+public class NextHopCache {
+
+	private static final int WAYS = 8;
+
+	/**
+	 * Relative margin by which a cached choice must win at each corner.
+	 */
+	private static final double MARGIN = 1e-9;
+
+	private static final int LOCKS = 64;
+
+	/**
+	 * Class Generation holds the entries made from one neighbor table version.
+	 * Each set is guarded by its lock stripe.
+	 */
+	private static class Generation {
+
+		final long version;
+		final long[] keys;
+		final int[] hops;
+		final boolean[] valid;
+		final boolean[] referenced;
+		final int[] hands;
+
+		Generation(long version, int sets) {
+			this.version = version;
+			this.keys = new long[sets * WAYS];
+			this.hops = new int[sets * WAYS];
+			this.valid = new boolean[sets * WAYS];
+			this.referenced = new boolean[sets * WAYS];
+			this.hands = new int[sets];
+		}
+	}
+
+	private final double cellSize;
+	private final int sets;
+	private final int setMask;
+	private final Object[] locks;
+	private final AtomicReference<Generation> generation;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates a new next hop cache.
+	 * 
+	 * @param capacity
+	 *            Approximate number of entries; rounded up to a power of two
+	 *            and at least 8.
+	 * @param cellSize
+	 *            Side length of a destination cell.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if cellSize is not positive.
+	 */
+	public NextHopCache(int capacity, double cellSize) {
+		if (!(cellSize > 0.0)) {
+			throw new IllegalArgumentException("Cell size: " + cellSize
+					+ " must be positive.");
+		}
+		int sets = 1;
+		while (sets * WAYS < capacity) {
+			sets <<= 1;
+		}
+		this.cellSize = cellSize;
+		this.sets = sets;
+		this.setMask = sets - 1;
+		this.locks = new Object[Math.min(sets, LOCKS)];
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		this.generation = new AtomicReference<Generation>(new Generation(-1L,
+				sets));
+	}
+
+	/**
+	 * Chooses the next hop for a package, from the cache if possible.
+	 * 
+	 * @param table
+	 *            The office's current neighbor table.
+	 * @param selfX
+	 *            The office's X coordinate.
+	 * @param selfY
+	 *            The office's Y coordinate.
+	 * @param x
+	 *            Destination X coordinate.
+	 * @param y
+	 *            Destination Y coordinate.
+	 * 
+	 * @return Index of the chosen neighbor in the table, or -1 if the package
+	 *         is to be delivered from this office.
+	 */
+	public int nextHop(NeighborTable table, double selfX, double selfY,
+			double x, double y) {
+		double fx = Math.floor(x / cellSize);
+		double fy = Math.floor(y / cellSize);
+		boolean cacheable = Math.abs(fx) < Integer.MAX_VALUE
+				&& Math.abs(fy) < Integer.MAX_VALUE;
+		int cx = (int) fx;
+		int cy = (int) fy;
+		long key = ((long) cx << 32) | (cy & 0xffffffffL);
+		int set = (int) mix(key) & setMask;
+		Generation g = generation(table.version());
+		if (cacheable && g != null) {
+			synchronized (locks[set % locks.length]) {
+				int base = set * WAYS;
+				for (int i = base; i < base + WAYS; i++) {
+					if (g.valid[i] && g.keys[i] == key) {
+						g.referenced[i] = true;
+						hits.increment();
+						return g.hops[i];
+					}
+				}
+			}
+		}
+		misses.increment();
+		int hop = table.nextHop(x, y, selfX, selfY, -1);
+		if (cacheable && g != null
+				&& wholeCell(table, selfX, selfY, cx, cy, hop)) {
+			synchronized (locks[set % locks.length]) {
+				insert(g, set, key, hop);
+			}
+		}
+		return hop;
+	}
+
+	/**
+	 * Returns the number of decisions answered from the cache.
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of decisions that had to be routed.
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the generation for the given table version, starting a new one
+	 * if the version is newer than the current generation's.
+	 * 
+	 * @return The generation, or null if the version is older than the
+	 *         current generation's, in which case the cache is not used.
+	 */
+	private Generation generation(long version) {
+		for (;;) {
+			Generation g = generation.get();
+			if (g.version == version) {
+				return g;
+			}
+			if (g.version > version) {
+				return null;
+			}
+			Generation fresh = new Generation(version, sets);
+			if (generation.compareAndSet(g, fresh)) {
+				return fresh;
+			}
+		}
+	}
+
+	/**
+	 * Stores a decision in the given set, evicting with CLOCK if it is full.
+	 * The caller holds the set's lock.
+	 */
+	private static void insert(Generation g, int set, long key, int hop) {
+		int base = set * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (!g.valid[i] || g.keys[i] == key) {
+				store(g, i, key, hop);
+				return;
+			}
+		}
+		for (;;) {
+			int i = base + g.hands[set];
+			g.hands[set] = (g.hands[set] + 1) % WAYS;
+			if (g.referenced[i]) {
+				g.referenced[i] = false;
+			} else {
+				store(g, i, key, hop);
+				return;
+			}
+		}
+	}
+
+	private static void store(Generation g, int i, long key, int hop) {
+		g.keys[i] = key;
+		g.hops[i] = hop;
+		g.valid[i] = true;
+		g.referenced[i] = false;
+	}
+
+	/**
+	 * Returns true if the given decision holds at every corner of the cell,
+	 * and so in the whole cell.
+	 */
+	private boolean wholeCell(NeighborTable table, double selfX, double selfY,
+			int cx, int cy, int hop) {
+		double x0 = cx * cellSize;
+		double y0 = cy * cellSize;
+		double x1 = (cx + 1.0) * cellSize;
+		double y1 = (cy + 1.0) * cellSize;
+		return wins(table, selfX, selfY, x0, y0, hop)
+				&& wins(table, selfX, selfY, x1, y0, hop)
+				&& wins(table, selfX, selfY, x0, y1, hop)
+				&& wins(table, selfX, selfY, x1, y1, hop);
+	}
+
+	/**
+	 * Returns true if, for a destination at the given point, the given choice
+	 * is nearer than every other candidate by the safety margin. Choice -1 is
+	 * this office itself.
+	 */
+	private static boolean wins(NeighborTable table, double selfX,
+			double selfY, double px, double py, int hop) {
+		double best = hop < 0 ? distanceSq(px, py, selfX, selfY) : distanceSq(
+				px, py, table.x(hop), table.y(hop));
+		if (hop >= 0 && !beats(best, distanceSq(px, py, selfX, selfY))) {
+			return false;
+		}
+		for (int i = 0; i < table.size(); i++) {
+			if (i != hop
+					&& !beats(best, distanceSq(px, py, table.x(i), table.y(i)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean beats(double winner, double other) {
+		return other - winner > MARGIN * (other + winner);
+	}
+
+	private static double distanceSq(double px, double py, double qx,
+			double qy) {
+		double dx = px - qx;
+		double dy = py - qy;
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Spreads the bits of a cell key over a set index.
+	 */
+	private static long mix(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return key ^ (key >>> 29);
+	}
+}
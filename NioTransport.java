@@ -0,0 +1,705 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.rit.ds.RemoteEventListener;
+import edu.rit.ds.registry.NotBoundException;
+
+/**
+ * Class NioTransport sends packets between GPS offices as binary frames over
+ * persistent TCP connections, one per neighbor, instead of one RMI call per
+ * hop. All sockets are non-blocking and served by one selector thread.
+ *
+ * A frame is a 4-byte length followed by the frame body, which starts with a
+ * type byte. A packet frame holds the packet in the format of Packet.writeTo
+ * and the customer's listener as a length-prefixed serialized remote
+ * reference, written as its stub if it is an exported object; the serialized
+ * listener is cached, so a customer sending many packets pays for it once.
+ * An acknowledgement frame holds the tracking number, the hop count, the
+ * acknowledging office's name and the answer.
+ *
+ * An office learns a neighbor's address from the descriptor it fetched when
+ * the neighbor was bound. A neighbor that has no address uses RMI, and
+ * packets for it go through its remote reference. A connection that fails is
+ * reported as a RemoteException on the next packet sent over it; packets
+ * already queued on it are lost.
+ *
+ * The listener is the only serialized object read from a peer, and the
+ * stream that reads it only resolves the classes of a remote reference to a
+ * RemoteEventListener, so a peer cannot make this office build any other
+ * object.
+ *
+ * A frame that cannot be decoded closes the connection it came on, and
+ * nothing else.
+ *
+ * A batch is sent as one frame per packet. The frames queued on a connection
+ * are written together with one gathering write, so a batch still costs about
+ * one system call.
+ */
+public class NioTransport implements Transport, Runnable {
+
+	private static final byte PACKET = 1;
+	private static final byte ACK = 2;
+
+	private static final GPSOfficeRef.Ack[] ACKS = GPSOfficeRef.Ack.values();
+
+	/**
+	 * Largest frame accepted from a peer.
+	 */
+	private static final int MAX_FRAME = 1 << 20;
+
+	/**
+	 * Most frames written by one gathering write.
+	 */
+	private static final int GATHER = 64;
+
+	/**
+	 * Number of serialized listeners kept.
+	 */
+	private static final int LISTENER_CACHE = 256;
+
+	/**
+	 * Class Connection is one socket, outbound to a neighbor or inbound from
+	 * one, with its queue of frames to write and its buffer of bytes read.
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicBoolean writeRequested = new AtomicBoolean();
+		final ByteBuffer[] gather = new ByteBuffer[GATHER];
+		ByteBuffer in = ByteBuffer.allocate(8192);
+		SelectionKey key;
+		volatile boolean failed;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * Marks a neighbor that has no transport address and is sent to by RMI.
+	 */
+	private static final Connection RMI = new Connection(null);
+
+	/**
+	 * Classes a serialized remote reference is made of.
+	 */
+	private static final Set<String> REFERENCE_CLASSES = new HashSet<String>(
+			Arrays.asList("java.lang.reflect.Proxy",
+					"java.rmi.server.RemoteObject",
+					"java.rmi.server.RemoteObjectInvocationHandler"));
+
+	/**
+	 * Interfaces a listener's remote reference may implement.
+	 */
+	private static final Set<String> LISTENER_INTERFACES = new HashSet<String>(
+			Arrays.asList(RemoteEventListener.class.getName(),
+					"java.rmi.Remote"));
+
+	/**
+	 * Class ReferenceOutputStream writes an exported remote object as its
+	 * stub, as RMI does when it marshals a call's arguments.
+	 */
+	private static class ReferenceOutputStream extends ObjectOutputStream {
+
+		ReferenceOutputStream(OutputStream out) throws IOException {
+			super(out);
+			enableReplaceObject(true);
+		}
+
+		protected Object replaceObject(Object object) throws IOException {
+			if (object instanceof Remote) {
+				try {
+					return RemoteObject.toStub((Remote) object);
+				} catch (NoSuchObjectException exc) {
+					// Not exported; written as it is.
+				}
+			}
+			return object;
+		}
+	}
+
+	/**
+	 * Class ListenerInputStream reads a listener's remote reference and
+	 * refuses every other class.
+	 */
+	private static class ListenerInputStream extends ObjectInputStream {
+
+		ListenerInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			if (!REFERENCE_CLASSES.contains(desc.getName())) {
+				throw new InvalidClassException(desc.getName(),
+						"not part of a listener reference");
+			}
+			return super.resolveClass(desc);
+		}
+
+		protected Class<?> resolveProxyClass(String[] interfaces)
+				throws IOException, ClassNotFoundException {
+			for (String name : interfaces) {
+				if (!LISTENER_INTERFACES.contains(name)) {
+					throw new InvalidClassException(name,
+							"not a listener interface");
+				}
+			}
+			return super.resolveProxyClass(interfaces);
+		}
+	}
+
+	private final Receiver receiver;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final String endpoint;
+	private final Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * Addresses of the other offices, by name; an empty string for an office
+	 * reached by RMI.
+	 */
+	private final ConcurrentHashMap<String, String> endpoints = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Outbound connections keyed by neighbor name.
+	 */
+	private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+
+	/**
+	 * Connections the selector thread has to register, or to start writing.
+	 */
+	private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * Serialized listeners, by listener, for sending. Listeners decoded from
+	 * their serialized form, for receiving; used by the selector thread only.
+	 */
+	private final Map<RemoteEventListener<NodeEvent>, byte[]> listeners = new LinkedHashMap<RemoteEventListener<NodeEvent>, byte[]>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+				Map.Entry<RemoteEventListener<NodeEvent>, byte[]> eldest) {
+			return size() > LISTENER_CACHE;
+		}
+	};
+	private final Map<ByteBuffer, RemoteEventListener<NodeEvent>> decoded = new LinkedHashMap<ByteBuffer, RemoteEventListener<NodeEvent>>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(
+				Map.Entry<ByteBuffer, RemoteEventListener<NodeEvent>> eldest) {
+			return size() > LISTENER_CACHE;
+		}
+	};
+
+	/**
+	 * Creates a new NIO transport listening on the given port.
+	 *
+	 * @param host
+	 *            Host name or address other offices use to reach this one.
+	 * @param port
+	 *            Port to listen on, or 0 for any free port.
+	 * @param receiver
+	 *            Receiver of the packets that arrive.
+	 *
+	 * @exception IOException
+	 *                Thrown if the port could not be opened.
+	 */
+	public NioTransport(String host, int port, Receiver receiver)
+			throws IOException {
+		this.receiver = receiver;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().bind(new InetSocketAddress(port));
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		endpoint = host + ":" + server.socket().getLocalPort();
+		thread = new Thread(this, "NioTransport " + endpoint);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void forward(GPSOfficeRef office, String officeName,
+			Packet request, RemoteEventListener<NodeEvent> listener)
+			throws RemoteException, NotBoundException {
+		Connection connection = connection(office, officeName);
+		if (connection == RMI) {
+			office.forwardPacket(request, listener);
+			return;
+		}
+		try {
+			send(connection, frame(request, listener));
+		} catch (IOException exc) {
+			throw new RemoteException("Cannot encode packet", exc);
+		}
+	}
+
+	public void forwardAll(GPSOfficeRef office, String officeName,
+			List<Packet> requests, List<RemoteEventListener<NodeEvent>> listeners)
+			throws RemoteException {
+		Connection connection = connection(office, officeName);
+		if (connection == RMI) {
+			office.forwardPackets(requests, listeners);
+			return;
+		}
+		try {
+			for (int i = 0; i < requests.size(); i++) {
+				send(connection, frame(requests.get(i), listeners.get(i)));
+			}
+		} catch (IOException exc) {
+			throw new RemoteException("Cannot encode packet", exc);
+		}
+	}
+
+	public void acknowledge(GPSOfficeRef office, String officeName,
+			long trackingNumber, int hops, String self, GPSOfficeRef.Ack ack)
+			throws RemoteException {
+		Connection connection = connection(office, officeName);
+		if (connection == RMI) {
+			office.acknowledge(trackingNumber, hops, self, ack);
+			return;
+		}
+		send(connection, ackFrame(trackingNumber, hops, self, ack));
+	}
+
+	public void acknowledgeAll(GPSOfficeRef office, String officeName,
+			long[] trackingNumbers, int[] hops, String self,
+			GPSOfficeRef.Ack[] acks) throws RemoteException {
+		Connection connection = connection(office, officeName);
+		if (connection == RMI) {
+			office.acknowledgePackets(trackingNumbers, hops, self, acks);
+			return;
+		}
+		for (int i = 0; i < trackingNumbers.length; i++) {
+			send(connection,
+					ackFrame(trackingNumbers[i], hops[i], self, acks[i]));
+		}
+	}
+
+	public String endpoint() {
+		return endpoint;
+	}
+
+	public void address(String officeName, String endpoint) {
+		String peer = endpoint == null ? "" : endpoint;
+		String previous = endpoints.put(officeName, peer);
+		if (previous != null && !previous.equals(peer)) {
+			// The office came back somewhere else.
+			Connection connection = connections.remove(officeName);
+			if (connection != null && connection != RMI) {
+				fail(connection);
+			}
+		}
+	}
+
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Returns the connection to an office, opening it if there is none yet.
+	 * Returns RMI if the office has no transport address. The office is only
+	 * asked for its address if it has not been given with address yet.
+	 */
+	private Connection connection(GPSOfficeRef office, String officeName)
+			throws RemoteException {
+		Connection connection = connections.get(officeName);
+		if (connection != null && connection.failed) {
+			connections.remove(officeName, connection);
+			throw new ConnectException("Connection to " + officeName
+					+ " failed");
+		}
+		if (connection == null) {
+			String peer = endpoints.get(officeName);
+			if (peer == null) {
+				peer = office.describe().endpoint;
+				address(officeName, peer);
+			} else if (peer.isEmpty()) {
+				peer = null;
+			}
+			connection = connect(officeName, peer);
+		}
+		return connection;
+	}
+
+	/**
+	 * Opens a connection to an office, unless another thread just did.
+	 */
+	private Connection connect(String officeName, String peer)
+			throws RemoteException {
+		if (peer == null) {
+			Connection previous = connections.putIfAbsent(officeName, RMI);
+			return previous != null ? previous : RMI;
+		}
+		int colon = peer.lastIndexOf(':');
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(new InetSocketAddress(peer.substring(0, colon),
+					Integer.parseInt(peer.substring(colon + 1))));
+		} catch (IOException exc) {
+			closeQuietly(channel);
+			throw new ConnectException("Cannot connect to " + officeName
+					+ " at " + peer, exc);
+		}
+		Connection connection = new Connection(channel);
+		Connection previous = connections.putIfAbsent(officeName, connection);
+		if (previous != null) {
+			closeQuietly(channel);
+			return previous;
+		}
+		pending.add(connection);
+		selector.wakeup();
+		return connection;
+	}
+
+	/**
+	 * Queues a frame on a connection and makes sure the selector thread will
+	 * write it.
+	 */
+	private void send(Connection connection, ByteBuffer frame) {
+		connection.out.add(frame);
+		if (connection.writeRequested.compareAndSet(false, true)) {
+			pending.add(connection);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Encodes a packet and its listener as one frame.
+	 */
+	private ByteBuffer frame(Packet request,
+			RemoteEventListener<NodeEvent> listener) throws IOException {
+		byte[] listenerBytes = serialize(listener);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				64 + listenerBytes.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(PACKET);
+		request.writeTo(out);
+		out.writeInt(listenerBytes.length);
+		out.write(listenerBytes);
+		out.flush();
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.limit() - 4);
+		return frame;
+	}
+
+	/**
+	 * Encodes an acknowledgement as one frame.
+	 */
+	private ByteBuffer ackFrame(long trackingNumber, int hops, String self,
+			GPSOfficeRef.Ack ack) throws RemoteException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					32 + self.length());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeByte(ACK);
+			out.writeLong(trackingNumber);
+			out.writeInt(hops);
+			out.writeUTF(self);
+			out.writeByte(ack.ordinal());
+			out.flush();
+			ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+			frame.putInt(0, frame.limit() - 4);
+			return frame;
+		} catch (IOException exc) {
+			throw new RemoteException("Cannot encode acknowledgement", exc);
+		}
+	}
+
+	private byte[] serialize(RemoteEventListener<NodeEvent> listener)
+			throws IOException {
+		synchronized (listeners) {
+			byte[] result = listeners.get(listener);
+			if (result != null) {
+				return result;
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ReferenceOutputStream(bytes);
+		out.writeObject(listener);
+		out.close();
+		byte[] result = bytes.toByteArray();
+		synchronized (listeners) {
+			listeners.put(listener, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs the selector loop.
+	 */
+	public void run() {
+		while (!closed) {
+			try {
+				selector.select();
+			} catch (IOException exc) {
+				break;
+			}
+			Connection connection;
+			while ((connection = pending.poll()) != null) {
+				register(connection);
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				connection = (Connection) key.attachment();
+				try {
+					if (key.isConnectable()) {
+						if (!connection.channel.finishConnect()) {
+							continue;
+						}
+						key.interestOps(connected(connection));
+					}
+					if (key.isValid() && key.isReadable()) {
+						read(connection);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(connection);
+					}
+				} catch (IOException exc) {
+					fail(connection);
+				} catch (RuntimeException exc) {
+					// A bad frame, or a receiver that failed on it, costs
+					// this connection only, never the selector thread.
+					fail(connection);
+				}
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			closeQuietly(key.channel());
+		}
+		closeQuietly(selector);
+	}
+
+	/**
+	 * Registers a new outbound connection, or turns on writing for a
+	 * connection which has frames queued.
+	 */
+	private void register(Connection connection) {
+		if (connection.failed) {
+			return;
+		}
+		try {
+			if (connection.key == null) {
+				connection.key = connection.channel.register(selector,
+						connection.channel.isConnected() ? connected(connection)
+								: SelectionKey.OP_CONNECT, connection);
+			} else if (!connection.channel.isConnectionPending()) {
+				connection.key.interestOps(connection.key.interestOps()
+						| SelectionKey.OP_WRITE);
+			}
+		} catch (ClosedChannelException exc) {
+			fail(connection);
+		}
+	}
+
+	/**
+	 * Returns the interest set of a connection which has just connected.
+	 */
+	private static int connected(Connection connection) {
+		return connection.out.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+	}
+
+	private void accept() {
+		try {
+			SocketChannel channel = server.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ,
+					connection);
+		} catch (IOException exc) {
+		}
+	}
+
+	/**
+	 * Writes queued frames until the queue is empty or the socket is full.
+	 */
+	private void write(Connection connection) throws IOException {
+		ByteBuffer[] gather = connection.gather;
+		for (;;) {
+			int n = 0;
+			for (ByteBuffer frame : connection.out) {
+				gather[n++] = frame;
+				if (n == gather.length) {
+					break;
+				}
+			}
+			if (n == 0) {
+				break;
+			}
+			connection.channel.write(gather, 0, n);
+			int written = 0;
+			while (written < n && !gather[written].hasRemaining()) {
+				connection.out.poll();
+				written++;
+			}
+			Arrays.fill(gather, 0, n, null);
+			if (written < n) {
+				return;
+			}
+		}
+		connection.key.interestOps(SelectionKey.OP_READ);
+		connection.writeRequested.set(false);
+		// A frame queued after the last poll may have seen the flag still set.
+		if (!connection.out.isEmpty()
+				&& connection.writeRequested.compareAndSet(false, true)) {
+			connection.key.interestOps(SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Reads what is available and hands every complete frame to the
+	 * receiver.
+	 */
+	private void read(Connection connection) throws IOException {
+		if (connection.channel.read(connection.in) < 0) {
+			throw new IOException("Connection closed");
+		}
+		ByteBuffer in = connection.in;
+		in.flip();
+		while (in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if (length <= 0 || length > MAX_FRAME) {
+				throw new IOException("Bad frame length " + length);
+			}
+			if (in.remaining() < 4 + length) {
+				break;
+			}
+			byte[] body = new byte[length];
+			in.position(in.position() + 4);
+			in.get(body);
+			receive(body);
+		}
+		in.compact();
+		if (!in.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+			in.flip();
+			larger.put(in);
+			connection.in = larger;
+		}
+	}
+
+	/**
+	 * Decodes one frame body and passes the packet or acknowledgement on.
+	 */
+	@SuppressWarnings("unchecked")
+	private void receive(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		if (type == ACK) {
+			long trackingNumber = in.readLong();
+			int hops = in.readInt();
+			String officeName = in.readUTF();
+			int ack = in.readByte();
+			if (ack < 0 || ack >= ACKS.length) {
+				throw new IOException("Unknown acknowledgement " + ack);
+			}
+			receiver.acknowledged(trackingNumber, hops, officeName, ACKS[ack]);
+			return;
+		}
+		if (type != PACKET) {
+			throw new IOException("Unknown frame type " + type);
+		}
+		Packet request = Packet.readFrom(in);
+		int length = in.readInt();
+		if (length < 0 || length > body.length) {
+			throw new IOException("Bad listener length " + length);
+		}
+		byte[] listenerBytes = new byte[length];
+		in.readFully(listenerBytes);
+		ByteBuffer key = ByteBuffer.wrap(listenerBytes);
+		RemoteEventListener<NodeEvent> listener = decoded.get(key);
+		if (listener == null) {
+			Object object;
+			try {
+				object = new ListenerInputStream(new ByteArrayInputStream(
+						listenerBytes)).readObject();
+			} catch (ClassNotFoundException exc) {
+				throw new IOException("Cannot decode listener", exc);
+			}
+			if (!(object instanceof RemoteEventListener)) {
+				throw new InvalidClassException(object.getClass().getName(),
+						"not a listener");
+			}
+			listener = (RemoteEventListener<NodeEvent>) object;
+			decoded.put(key, listener);
+		}
+		receiver.receive(request, listener);
+	}
+
+	/**
+	 * Closes a connection. An outbound connection stays in the map marked as
+	 * failed, so the next packet sent to that neighbor reports the failure.
+	 */
+	private void fail(Connection connection) {
+		connection.failed = true;
+		if (connection.key != null) {
+			connection.key.cancel();
+		}
+		closeQuietly(connection.channel);
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable == null) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException exc) {
+		}
+	}
+}
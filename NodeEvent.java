@@ -3,29 +3,111 @@ import edu.rit.ds.RemoteEvent;
 /**
  * Class NodeEvent encapsulates a remote event generated by a GPS office.
  * The node events are used to report the Customer class and Headquarters
- * class about the event when a package leaves a GPS office.
+ * class about the event when a package arrives at, leaves, is delivered
+ * from or is lost by a GPS office.
+ *
+ * A node event only carries the facts of the event. The text shown to a
+ * person is put together by toString(), when a listener prints the event.
  */
 public class NodeEvent
    extends RemoteEvent
    {
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * Kind of node event.
+    */
+   public static enum Type
+      {
+      ARRIVED,
+      DELIVERED,
+      DEPARTED,
+      LOST
+      }
+
+   public final Type type;
+   public final long trackingNumber;
    public final String officename;
-   public final Customer request;
-   
-   public final int delivery;
+   public final long timestamp;
+   public final double x;
+   public final double y;
+   public final int hops;
+
+   /**
+    * Create a new node event for the given package, timestamped now.
+    *
+    * @param  type        Kind of event.
+    * @param  officename  Name of the GPS office that issued this event.
+    * @param  request     Package the event is about.
+    */
+   public NodeEvent
+      (Type type,
+       String officename,
+       Packet request)
+      {
+      this (type, request.getTrackingNumber(), officename,
+         System.currentTimeMillis(), request.getX(), request.getY(),
+         request.getHops());
+      }
 
    /**
     * Create a new node event.
     *
-    * @param  officename  Name of the GPS office that issued this package.
-    * @param  query   Package that was issued.
+    * @param  type            Kind of event.
+    * @param  trackingNumber  Tracking number of the package.
+    * @param  officename      Name of the GPS office that issued this event.
+    * @param  timestamp       Time of the event, in milliseconds since
+    *                         1970-01-01 00:00 UTC.
+    * @param  x               Destination X coordinate of the package.
+    * @param  y               Destination Y coordinate of the package.
+    * @param  hops            Hops taken by the package so far.
     */
    public NodeEvent
-      (String officename,
-       Customer request, 
-       int delivery)
+      (Type type,
+       long trackingNumber,
+       String officename,
+       long timestamp,
+       double x,
+       double y,
+       int hops)
       {
+      this.type = type;
+      this.trackingNumber = trackingNumber;
       this.officename = officename;
-      this.request = request;
-      this.delivery = delivery;
+      this.timestamp = timestamp;
+      this.x = x;
+      this.y = y;
+      this.hops = hops;
+      }
+
+   /**
+    * Returns true if the package's trip ended with this event, that is, if
+    * the package was delivered or lost.
+    */
+   public boolean isFinal()
+      {
+      return type == Type.DELIVERED || type == Type.LOST;
+      }
+
+   /**
+    * Returns a human readable description of this event.
+    */
+   public String toString()
+      {
+      switch (type)
+         {
+         case ARRIVED:
+            return "Package number " + trackingNumber + " arrived at " +
+               officename + " office";
+         case DELIVERED:
+            return "Package number " + trackingNumber + " delivered from " +
+               officename + " office to (" + x + "," + y + ")";
+         case DEPARTED:
+            return "Package number " + trackingNumber + " departed from " +
+               officename + " office";
+         default:
+            return "Package number " + trackingNumber + " lost by " +
+               officename + " office";
+         }
       }
    }
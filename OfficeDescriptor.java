@@ -0,0 +1,67 @@
+import java.io.Serializable;
+
+/**
+ * Class OfficeDescriptor is an immutable description of a GPS office: its
+ * name, the X and Y coordinates of its location, the version of its neighbor
+ * table and the address of its packet transport, if any. It lets another
+ * office learn everything it needs about an office in one remote call.
+ */
+public class OfficeDescriptor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The office's name.
+	 */
+	public final String name;
+
+	/**
+	 * The office location's X coordinate.
+	 */
+	public final double x;
+
+	/**
+	 * The office location's Y coordinate.
+	 */
+	public final double y;
+
+	/**
+	 * Version of the office's neighbor table. Increases every time the
+	 * office's neighbors change.
+	 */
+	public final long version;
+
+	/**
+	 * Address, as host:port, at which the office takes packets through a
+	 * transport other than RMI, or null if it uses RMI.
+	 */
+	public final String endpoint;
+
+	/**
+	 * Creates a new office descriptor.
+	 * 
+	 * @param name
+	 *            Office name.
+	 * @param x
+	 *            X coordinate.
+	 * @param y
+	 *            Y coordinate.
+	 * @param version
+	 *            Neighbor table version.
+	 * @param endpoint
+	 *            Transport address, or null.
+	 */
+	public OfficeDescriptor(String name, double x, double y, long version,
+			String endpoint) {
+		this.name = name;
+		this.x = x;
+		this.y = y;
+		this.version = version;
+		this.endpoint = endpoint;
+	}
+
+	public String toString() {
+		return name + " (" + x + "," + y + ") v" + version
+				+ (endpoint == null ? "" : " @" + endpoint);
+	}
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+import edu.rit.ds.registry.AlreadyBoundException;
+import edu.rit.ds.registry.NotBoundException;
+
+/**
+ * Class OfficeId claims the office id a GPS office puts in its tracking
+ * numbers, so that no two running offices share one. Two offices with the
+ * same id would make the same tracking numbers, and a package would then
+ * overwrite another in the offices, the clients and the journal.
+ * 
+ * An id is claimed by binding an OfficeIdRef under the name GPSOfficeId.id
+ * in the directory, which only lets one object be bound under a name. If the
+ * id is already bound, its holder is asked for its name; a holder that does
+ * not answer is gone, and its id is taken over.
+ */
+public class OfficeId implements OfficeIdRef {
+
+	/**
+	 * Number of office ids, which is the number of offices that can run at
+	 * once.
+	 */
+	public static final int IDS = TrackingNumberGenerator.OFFICES;
+
+	private static final String PREFIX = "GPSOfficeId.";
+
+	private final Directory directory;
+	private final String officeName;
+	private int id = -1;
+	private volatile boolean released;
+
+	private OfficeId(Directory directory, String officeName) {
+		this.directory = directory;
+		this.officeName = officeName;
+	}
+
+	/**
+	 * Claims an office id.
+	 * 
+	 * @param directory
+	 *            Directory the offices are bound in.
+	 * @param officeName
+	 *            Name of the office claiming the id.
+	 * @param id
+	 *            Id wanted, 0 to 8191, or -1 for the first free id, starting
+	 *            from one derived from the office name.
+	 * 
+	 * @return Claimed id, to be released when the office leaves.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if the id wanted is out of
+	 *                range or held by another running office.
+	 * @exception IOException
+	 *                Thrown if every id is held, or if a remote error
+	 *                occurred.
+	 */
+	public static OfficeId claim(Directory directory, String officeName,
+			int id) throws IOException {
+		if (id < -1 || id >= IDS) {
+			throw new IllegalArgumentException("Office id: " + id
+					+ " must be between 0 and " + (IDS - 1) + ".");
+		}
+		OfficeId claim = new OfficeId(directory, officeName);
+		UnicastRemoteObject.exportObject(claim, 0);
+		try {
+			if (id >= 0) {
+				String holder = claim.bind(id);
+				if (holder != null) {
+					throw new IllegalArgumentException("Office id " + id
+							+ " is already used by GPSOffice " + holder);
+				}
+				return claim;
+			}
+			int first = TrackingNumberGenerator.officeId(officeName);
+			for (int i = 0; i < IDS; i++) {
+				if (claim.bind((first + i) % IDS) == null) {
+					return claim;
+				}
+			}
+			throw new IOException("Office id: all " + IDS
+					+ " ids are used by running offices");
+		} finally {
+			if (claim.id < 0) {
+				claim.unexport();
+			}
+		}
+	}
+
+	/**
+	 * Returns the id.
+	 */
+	public int id() {
+		return id;
+	}
+
+	public String officeName() throws RemoteException {
+		if (released) {
+			throw new NoSuchObjectException("Office id " + id
+					+ " was released");
+		}
+		return officeName;
+	}
+
+	/**
+	 * Gives the id up, so that another office can claim it.
+	 * 
+	 * @param unbind
+	 *            True to unbind the id at once; false to leave it bound, as
+	 *            when the office dies, for the next claimant to take over.
+	 */
+	public void release(boolean unbind) {
+		released = true;
+		if (unbind) {
+			try {
+				directory.unbind(PREFIX + id);
+			} catch (NotBoundException exc) {
+			} catch (RemoteException exc) {
+			}
+		}
+		unexport();
+	}
+
+	/**
+	 * Tries to bind an id to this claim, taking it over if its holder is
+	 * gone.
+	 * 
+	 * @return Null if the id was claimed, or the name of the office holding
+	 *         it.
+	 */
+	private String bind(int candidate) throws RemoteException {
+		String name = PREFIX + candidate;
+		for (;;) {
+			try {
+				directory.bind(name, this);
+				id = candidate;
+				return null;
+			} catch (AlreadyBoundException exc) {
+			}
+			try {
+				return ((OfficeIdRef) directory.lookup(name)).officeName();
+			} catch (NotBoundException exc) {
+				// Released meanwhile; try again.
+			} catch (RemoteException exc) {
+				// The holder is gone.
+				try {
+					directory.unbind(name);
+				} catch (NotBoundException exc2) {
+				}
+			}
+		}
+	}
+
+	private void unexport() {
+		try {
+			UnicastRemoteObject.unexportObject(this, true);
+		} catch (NoSuchObjectException exc) {
+		}
+	}
+}
@@ -0,0 +1,18 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface OfficeIdRef is the remote object a GPS office binds in the
+ * directory to hold its tracking number office id. See class OfficeId.
+ */
+public interface OfficeIdRef extends Remote {
+
+	/**
+	 * Returns the name of the office holding the id.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred, for instance because
+	 *                the office is gone.
+	 */
+	public String officeName() throws RemoteException;
+}
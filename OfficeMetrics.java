@@ -0,0 +1,305 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Class OfficeMetrics counts what a GPS office does and publishes it as an
+ * MBean named GPS:type=GPSOffice,name=&lt;office&gt; in the platform MBean
+ * server, so a JMX console shows every office in a process. Counters are
+ * LongAdders and times go into Histograms, so recording never takes a lock on
+ * the forwarding path. The forwarding stage, next hop cache, event
+ * dispatcher and batcher keep their own counts, which are read from them
+ * when asked for.
+ */
+public class OfficeMetrics implements OfficeMetricsMBean {
+
+	/**
+	 * Class Link is the forward times to one office.
+	 */
+	private static class Link {
+		final LongAdder calls = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+	}
+
+	private final String name;
+	private final ForwardingStage stage;
+	private final NextHopCache cache;
+	private final EventDispatcher dispatcher;
+	private final Batcher<?> batcher;
+	private final Map<?, ?> unacknowledged;
+	private ObjectName objectName;
+
+	private final LongAdder arrivals = new LongAdder();
+	private final LongAdder refusals = new LongAdder();
+	private final LongAdder departures = new LongAdder();
+	private final LongAdder deliveries = new LongAdder();
+	private final LongAdder losses = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	private final Histogram routing = new Histogram();
+	private final Histogram forward = new Histogram();
+	private final Histogram hop = new Histogram();
+	private final Histogram lookup = new Histogram();
+	private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<String, Link>();
+
+	/**
+	 * Creates the metrics of an office.
+	 *
+	 * @param name
+	 *            Office's name.
+	 * @param stage
+	 *            Office's forwarding stage.
+	 * @param cache
+	 *            Office's next hop cache.
+	 * @param dispatcher
+	 *            Office's event dispatcher.
+	 * @param batcher
+	 *            Office's outbound batcher.
+	 * @param unacknowledged
+	 *            Office's packets sent on and not yet acknowledged.
+	 */
+	public OfficeMetrics(String name, ForwardingStage stage,
+			NextHopCache cache, EventDispatcher dispatcher, Batcher<?> batcher,
+			Map<?, ?> unacknowledged) {
+		this.name = name;
+		this.stage = stage;
+		this.cache = cache;
+		this.dispatcher = dispatcher;
+		this.batcher = batcher;
+		this.unacknowledged = unacknowledged;
+	}
+
+	/**
+	 * Publishes these metrics in the platform MBean server.
+	 *
+	 * @exception JMException
+	 *                Thrown if the MBean could not be registered, for instance
+	 *                because an office of the same name in this process
+	 *                already has.
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("GPS:type=GPSOffice,name="
+				+ ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	/**
+	 * Withdraws these metrics from the platform MBean server, if they were
+	 * published.
+	 */
+	public void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException exc) {
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Counts an event the office reported about a package.
+	 */
+	public void event(NodeEvent.Type type) {
+		switch (type) {
+		case ARRIVED:
+			arrivals.increment();
+			break;
+		case DEPARTED:
+			departures.increment();
+			break;
+		case DELIVERED:
+			deliveries.increment();
+			break;
+		default:
+			losses.increment();
+			break;
+		}
+	}
+
+	/**
+	 * Counts a package refused because the office was full.
+	 */
+	public void refused() {
+		refusals.increment();
+	}
+
+	/**
+	 * Counts a failed remote call the office gave up on.
+	 */
+	public void error() {
+		errors.increment();
+	}
+
+	/**
+	 * Records the time a next hop decision took.
+	 */
+	public void routing(long nanos) {
+		routing.record(nanos);
+	}
+
+	/**
+	 * Records the time a call sending packets to another office took.
+	 *
+	 * @param office
+	 *            Office the packets were sent to.
+	 * @param nanos
+	 *            Time in nanoseconds.
+	 */
+	public void forward(String office, long nanos) {
+		forward.record(nanos);
+		Link link = links.get(office);
+		if (link == null) {
+			links.putIfAbsent(office, new Link());
+			link = links.get(office);
+		}
+		link.calls.increment();
+		link.nanos.add(nanos);
+	}
+
+	/**
+	 * Records the time from sending a package to its acknowledgement.
+	 */
+	public void hop(long nanos) {
+		hop.record(nanos);
+	}
+
+	/**
+	 * Records the time a registry lookup took.
+	 */
+	public void lookup(long nanos) {
+		lookup.record(nanos);
+	}
+
+	/**
+	 * Forgets the forward times to an office which is no longer a neighbor.
+	 */
+	public void forget(String office) {
+		links.remove(office);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getArrivals() {
+		return arrivals.sum();
+	}
+
+	public long getRefusals() {
+		return refusals.sum();
+	}
+
+	public long getDepartures() {
+		return departures.sum();
+	}
+
+	public long getDeliveries() {
+		return deliveries.sum();
+	}
+
+	public long getLosses() {
+		return losses.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public int getInFlight() {
+		return stage.inFlight();
+	}
+
+	public int getUnacknowledged() {
+		return unacknowledged.size();
+	}
+
+	public int getQueueDepth() {
+		return stage.queueDepth();
+	}
+
+	public double getRoutingMeanMicros() {
+		return routing.mean() / 1e3;
+	}
+
+	public double getRoutingP99Micros() {
+		return routing.percentile(0.99) / 1e3;
+	}
+
+	public double getForwardMeanMicros() {
+		return forward.mean() / 1e3;
+	}
+
+	public double getForwardP99Micros() {
+		return forward.percentile(0.99) / 1e3;
+	}
+
+	public double getForwardMaxMicros() {
+		return forward.max() / 1e3;
+	}
+
+	public double getHopMeanMicros() {
+		return hop.mean() / 1e3;
+	}
+
+	public double getHopP99Micros() {
+		return hop.percentile(0.99) / 1e3;
+	}
+
+	public double getLookupMeanMicros() {
+		return lookup.mean() / 1e3;
+	}
+
+	public double getLookupP99Micros() {
+		return lookup.percentile(0.99) / 1e3;
+	}
+
+	public String getSlowestLink() {
+		String slowest = null;
+		double worst = 0.0;
+		for (Map.Entry<String, Link> entry : links.entrySet()) {
+			long calls = entry.getValue().calls.sum();
+			double mean = calls == 0 ? 0.0 : (double) entry.getValue().nanos
+					.sum() / calls;
+			if (slowest == null || mean > worst) {
+				slowest = entry.getKey();
+				worst = mean;
+			}
+		}
+		return slowest == null ? "" : String.format("%s %.1f us", slowest,
+				worst / 1e3);
+	}
+
+	public long getCacheHits() {
+		return cache.hits();
+	}
+
+	public long getCacheMisses() {
+		return cache.misses();
+	}
+
+	public long getEventsDelivered() {
+		return dispatcher.delivered();
+	}
+
+	public long getEventsDropped() {
+		return dispatcher.dropped();
+	}
+
+	public long getBatches() {
+		return batcher.batches();
+	}
+
+	public long getBatchedPackets() {
+		return batcher.items();
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Interface OfficeMetricsMBean is the management interface of a GPS office,
+ * as seen in a JMX console. Counts are totals since the office started;
+ * times are in microseconds.
+ */
+public interface OfficeMetricsMBean {
+
+	/**
+	 * Returns the office's name.
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of packages that arrived at the office.
+	 */
+	public long getArrivals();
+
+	/**
+	 * Returns the number of packages the office refused because it was full.
+	 */
+	public long getRefusals();
+
+	/**
+	 * Returns the number of packages the office sent on.
+	 */
+	public long getDepartures();
+
+	/**
+	 * Returns the number of packages the office delivered.
+	 */
+	public long getDeliveries();
+
+	/**
+	 * Returns the number of packages the office reported lost.
+	 */
+	public long getLosses();
+
+	/**
+	 * Returns the number of failed remote calls the office gave up on.
+	 */
+	public long getErrors();
+
+	/**
+	 * Returns the number of packages the office holds.
+	 */
+	public int getInFlight();
+
+	/**
+	 * Returns the number of packages sent on and not yet acknowledged.
+	 */
+	public int getUnacknowledged();
+
+	/**
+	 * Returns the number of tasks waiting for a worker thread.
+	 */
+	public int getQueueDepth();
+
+	public double getRoutingMeanMicros();
+
+	public double getRoutingP99Micros();
+
+	public double getForwardMeanMicros();
+
+	public double getForwardP99Micros();
+
+	public double getForwardMaxMicros();
+
+	/**
+	 * Times from sending a package to its acknowledgement.
+	 */
+	public double getHopMeanMicros();
+
+	public double getHopP99Micros();
+
+	public double getLookupMeanMicros();
+
+	public double getLookupP99Micros();
+
+	/**
+	 * Returns the link with the highest mean forward time, and that time.
+	 */
+	public String getSlowestLink();
+
+	public long getCacheHits();
+
+	public long getCacheMisses();
+
+	public long getEventsDelivered();
+
+	public long getEventsDropped();
+
+	public long getBatches();
+
+	public long getBatchedPackets();
+}
@@ -0,0 +1,30 @@
+import java.rmi.RemoteException;
+
+/**
+ * Class OfficeSaturatedException is thrown to a customer when the GPS office
+ * it submits a package to has no room for it. It tells the customer whether
+ * it should try another office. Offices refuse packets from each other with
+ * an acknowledgement instead.
+ */
+public class OfficeSaturatedException extends RemoteException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * True if the customer should try another office.
+	 */
+	public final boolean redirect;
+
+	/**
+	 * Creates a new office saturated exception.
+	 * 
+	 * @param officeName
+	 *            Name of the saturated office.
+	 * @param redirect
+	 *            True if the customer should try another office.
+	 */
+	public OfficeSaturatedException(String officeName, boolean redirect) {
+		super(officeName + " office is saturated");
+		this.redirect = redirect;
+	}
+}
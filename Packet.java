@@ -0,0 +1,172 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Class Packet is a package travelling through the GPS tracking system. It
+ * holds the tracking number, the X and Y coordinates of the destination, the
+ * name of the originating office, the number of hops taken so far and the
+ * office that sent it on its last hop, which is owed an acknowledgement.
+ * 
+ * A packet is sent from office to office at every hop, so it writes its own
+ * compact wire format instead of using default serialization: a long, two
+ * doubles, a string, an int and a string. Office names are interned when
+ * read, so all the packets from one office share a single string.
+ */
+public class Packet implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long trackingNumber;
+	private double x;
+	private double y;
+	private String origin;
+	private int hops;
+	private String sender;
+
+	/**
+	 * Creates an empty packet. Only for use by deserialization.
+	 */
+	public Packet() {
+	}
+
+	/**
+	 * Creates a new packet at its originating office.
+	 * 
+	 * @param trackingNumber
+	 *            Tracking number.
+	 * @param x
+	 *            Destination X coordinate.
+	 * @param y
+	 *            Destination Y coordinate.
+	 * @param origin
+	 *            Originating office name.
+	 */
+	public Packet(long trackingNumber, double x, double y, String origin) {
+		this(trackingNumber, x, y, origin.intern(), 0, null);
+	}
+
+	private Packet(long trackingNumber, double x, double y, String origin,
+			int hops, String sender) {
+		this.trackingNumber = trackingNumber;
+		this.x = x;
+		this.y = y;
+		this.origin = origin;
+		this.hops = hops;
+		this.sender = sender;
+	}
+
+	/**
+	 * Returns this packet as it leaves for the next office, with one more hop.
+	 * 
+	 * @param sender
+	 *            Name of the office sending the packet.
+	 */
+	public Packet nextHop(String sender) {
+		return new Packet(trackingNumber, x, y, origin, hops + 1, sender);
+	}
+
+	/**
+	 * Returns the packet's tracking number.
+	 */
+	public long getTrackingNumber() {
+		return trackingNumber;
+	}
+
+	/**
+	 * Returns the destination's X coordinate.
+	 */
+	public double getX() {
+		return x;
+	}
+
+	/**
+	 * Returns the destination's Y coordinate.
+	 */
+	public double getY() {
+		return y;
+	}
+
+	/**
+	 * Returns the originating office's name.
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * Returns the number of hops the packet has taken.
+	 */
+	public int getHops() {
+		return hops;
+	}
+
+	/**
+	 * Returns the name of the office that sent the packet on its last hop, or
+	 * null if the packet has not left its originating office.
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeTo(out);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException {
+		read(in);
+	}
+
+	/**
+	 * Writes this packet's wire format.
+	 * 
+	 * @param out
+	 *            Output to write to.
+	 * 
+	 * @exception IOException
+	 *                Thrown if an I/O error occurred.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(trackingNumber);
+		out.writeDouble(x);
+		out.writeDouble(y);
+		out.writeUTF(origin);
+		out.writeInt(hops);
+		out.writeUTF(sender == null ? "" : sender);
+	}
+
+	/**
+	 * Reads a packet written by writeTo.
+	 * 
+	 * @param in
+	 *            Input to read from.
+	 * 
+	 * @return Packet
+	 * 
+	 * @exception IOException
+	 *                Thrown if an I/O error occurred.
+	 */
+	public static Packet readFrom(DataInput in) throws IOException {
+		Packet packet = new Packet();
+		packet.read(in);
+		return packet;
+	}
+
+	private void read(DataInput in) throws IOException {
+		trackingNumber = in.readLong();
+		x = in.readDouble();
+		y = in.readDouble();
+		origin = in.readUTF().intern();
+		hops = in.readInt();
+		sender = in.readUTF();
+		sender = sender.length() == 0 ? null : sender.intern();
+	}
+
+	public String toString() {
+		return "Package number " + trackingNumber + " from " + origin
+				+ " to (" + x + "," + y + ")";
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ * Class PacketLostException completes a package's future when a GPS office
+ * reports the package lost.
+ */
+public class PacketLostException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The event which reported the loss.
+	 */
+	public final NodeEvent event;
+
+	/**
+	 * Creates a new packet lost exception.
+	 *
+	 * @param event
+	 *            The LOST event.
+	 */
+	public PacketLostException(NodeEvent event) {
+		super(event.toString());
+		this.event = event;
+	}
+}
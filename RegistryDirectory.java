@@ -0,0 +1,77 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.rit.ds.registry.AlreadyBoundException;
+import edu.rit.ds.registry.NotBoundException;
+import edu.rit.ds.registry.RegistryEvent;
+import edu.rit.ds.registry.RegistryEventFilter;
+import edu.rit.ds.registry.RegistryEventListener;
+import edu.rit.ds.registry.RegistryProxy;
+
+/**
+ * Class RegistryDirectory is a directory kept by a Registry Server.
+ */
+public class RegistryDirectory implements Directory {
+
+	private final RegistryProxy registry;
+
+	/**
+	 * Exported registry event listeners, kept so they stay reachable.
+	 */
+	private final List<RegistryEventListener> listeners = new ArrayList<RegistryEventListener>();
+
+	/**
+	 * Creates a new registry directory.
+	 * 
+	 * @param registry
+	 *            Proxy for the Registry Server.
+	 */
+	public RegistryDirectory(RegistryProxy registry) {
+		this.registry = registry;
+	}
+
+	public List<String> list() throws RemoteException {
+		return registry.list();
+	}
+
+	public List<String> list(String type) throws RemoteException {
+		return registry.list(type);
+	}
+
+	public Remote lookup(String name) throws NotBoundException,
+			RemoteException {
+		return registry.lookup(name);
+	}
+
+	public void bind(String name, Remote object) throws AlreadyBoundException,
+			RemoteException {
+		registry.bind(name, object);
+	}
+
+	public void unbind(String name) throws NotBoundException, RemoteException {
+		registry.unbind(name);
+	}
+
+	public void watch(String type, final Watcher watcher)
+			throws RemoteException {
+		RegistryEventListener listener = new RegistryEventListener() {
+			public void report(long seqnum, RegistryEvent event) {
+				if (event.objectWasBound()) {
+					watcher.bound(event.objectName());
+				} else {
+					watcher.unbound(event.objectName());
+				}
+			}
+		};
+		UnicastRemoteObject.exportObject(listener, 0);
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+		RegistryEventFilter filter = new RegistryEventFilter();
+		filter.reportType(type).reportBound().reportUnbound();
+		registry.addEventListener(listener, filter);
+	}
+}
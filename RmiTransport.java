@@ -0,0 +1,46 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+import edu.rit.ds.RemoteEventListener;
+import edu.rit.ds.registry.NotBoundException;
+
+/**
+ * Class RmiTransport sends packets by calling forwardPacket on the next
+ * office's remote reference. It is the default transport.
+ */
+public class RmiTransport implements Transport {
+
+	public void forward(GPSOfficeRef office, String officeName,
+			Packet request, RemoteEventListener<NodeEvent> listener)
+			throws RemoteException, NotBoundException {
+		office.forwardPacket(request, listener);
+	}
+
+	public void forwardAll(GPSOfficeRef office, String officeName,
+			List<Packet> requests, List<RemoteEventListener<NodeEvent>> listeners)
+			throws RemoteException {
+		office.forwardPackets(requests, listeners);
+	}
+
+	public void acknowledge(GPSOfficeRef office, String officeName,
+			long trackingNumber, int hops, String self, GPSOfficeRef.Ack ack)
+			throws RemoteException {
+		office.acknowledge(trackingNumber, hops, self, ack);
+	}
+
+	public void acknowledgeAll(GPSOfficeRef office, String officeName,
+			long[] trackingNumbers, int[] hops, String self,
+			GPSOfficeRef.Ack[] acks) throws RemoteException {
+		office.acknowledgePackets(trackingNumbers, hops, self, acks);
+	}
+
+	public String endpoint() {
+		return null;
+	}
+
+	public void address(String officeName, String endpoint) {
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Class RoutingKernel decides the next hop of a package. It is the innermost
+ * step of every hop, so it works only on primitive arrays holding the
+ * neighbors' coordinates, one array for X and one for Y, compares squared
+ * distances and allocates nothing.
+ */
+public class RoutingKernel {
+
+	private RoutingKernel() {
+	}
+
+	/**
+	 * Chooses the next hop for a package. The package stays at this office if
+	 * no neighbor is strictly nearer to the destination; otherwise it goes to
+	 * the nearest neighbor, the first one in array order if several are
+	 * equally near.
+	 * 
+	 * @param x
+	 *            Destination X coordinate.
+	 * @param y
+	 *            Destination Y coordinate.
+	 * @param selfX
+	 *            This office's X coordinate.
+	 * @param selfY
+	 *            This office's Y coordinate.
+	 * @param nx
+	 *            Neighbors' X coordinates.
+	 * @param ny
+	 *            Neighbors' Y coordinates.
+	 * @param k
+	 *            Number of neighbors, at most the length of nx and ny.
+	 * @param exclude
+	 *            Index of a neighbor not to choose, or -1.
+	 * 
+	 * @return Index of the chosen neighbor, or -1 if the package is to be
+	 *         delivered from this office.
+	 */
+	public static int nextHop(double x, double y, double selfX, double selfY,
+			double[] nx, double[] ny, int k, int exclude) {
+		double dx = x - selfX;
+		double dy = y - selfY;
+		double best = dx * dx + dy * dy;
+		int hop = -1;
+		for (int i = 0; i < k; i++) {
+			dx = x - nx[i];
+			dy = y - ny[i];
+			double d = dx * dx + dy * dy;
+			if (d < best && i != exclude) {
+				best = d;
+				hop = i;
+			}
+		}
+		return hop;
+	}
+}
@@ -0,0 +1,613 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Class Simulator plays packages through a GPS tracking system of any size on
+ * a virtual clock, to see what hop counts, latencies and losses a given
+ * number of offices and load would give without running them. The offices'
+ * neighbor tables are built from a SpatialIndex as GPSOffice builds them, and
+ * every next hop is chosen by the same routing kernel, so packages take the
+ * routes they would take in the real system.
+ *
+ * Each office is modeled as a GPSOffice works: a package is admitted if the
+ * office holds fewer than GPSOffice.capacity packages, parked for the transit
+ * delay, then delivered or sent to the next office, which acknowledges it.
+ * The sender holds the package until the acknowledgement arrives. A package
+ * refused by a full office is lost, or redirected once to another neighbor,
+ * as the GPSOffice.admission policy says. Packages are submitted at random
+ * offices, at exponentially distributed intervals, for destinations drawn
+ * uniformly over the box around the offices.
+ *
+ * Events are kept in a binary heap of virtual times in microseconds, in
+ * primitive arrays, and packages in reusable slots of parallel arrays, so a
+ * run allocates almost nothing after warming up.
+ *
+ * Usage: java Simulator offices count rate offices = Number of offices count =
+ * Number of packages rate = Packages per second of virtual time
+ *
+ * The run is tuned with system properties: Simulator.layout (uniform or
+ * clustered), Simulator.seed, Simulator.network (one-way network latency in
+ * milliseconds) and Simulator.stats (file to append one CSV line of results
+ * to). GPSOffice.delay, GPSOffice.capacity and GPSOffice.admission are read
+ * as the offices read them.
+ */
+public class Simulator {
+
+	private static final String LAYOUT_PROPERTY = "Simulator.layout";
+	private static final String SEED_PROPERTY = "Simulator.seed";
+	private static final String NETWORK_PROPERTY = "Simulator.network";
+	private static final String STATS_PROPERTY = "Simulator.stats";
+
+	private static final int NEIGHBORS = 3;
+	private static final double SPACING = 10.0;
+	private static final int CLUSTERS = 20;
+
+	/**
+	 * Latencies are counted in 1 ms buckets up to this many milliseconds; the
+	 * last bucket holds everything longer.
+	 */
+	private static final int LATENCY_BUCKETS = 1 << 21;
+
+	/**
+	 * Event types, in the low bits of an event. The rest of an event is the
+	 * package's slot, or for ACK the office being acknowledged.
+	 */
+	private static final int SUBMIT = 0;
+	private static final int DEPART = 1;
+	private static final int RECEIVE = 2;
+	private static final int ACK = 3;
+	private static final int REFUSED = 4;
+	private static final int REDIRECT = 5;
+	private static final int TYPE_BITS = 3;
+	private static final long TYPE_MASK = (1L << TYPE_BITS) - 1;
+
+	/**
+	 * How the offices are laid out.
+	 */
+	public static enum Layout {
+
+		/**
+		 * Uniformly over a square.
+		 */
+		UNIFORM,
+
+		/**
+		 * In Gaussian clusters.
+		 */
+		CLUSTERED
+	}
+
+	/**
+	 * Class EventQueue is a binary min-heap of events keyed by virtual time.
+	 */
+	private static class EventQueue {
+		private long[] times = new long[1024];
+		private long[] events = new long[1024];
+		private int size;
+
+		/**
+		 * Virtual time of the event last polled.
+		 */
+		long now;
+
+		void add(long time, long event) {
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				events = Arrays.copyOf(events, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (times[parent] <= time) {
+					break;
+				}
+				times[i] = times[parent];
+				events[i] = events[parent];
+				i = parent;
+			}
+			times[i] = time;
+			events[i] = event;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Removes the earliest event, advances now to its time and returns it.
+		 */
+		long poll() {
+			long event = events[0];
+			now = times[0];
+			long time = times[--size];
+			long last = events[size];
+			int i = 0;
+			int half = size >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && times[child + 1] < times[child]) {
+					child++;
+				}
+				if (time <= times[child]) {
+					break;
+				}
+				times[i] = times[child];
+				events[i] = events[child];
+				i = child;
+			}
+			times[i] = time;
+			events[i] = last;
+			return event;
+		}
+	}
+
+	// Offices.
+	private final int offices;
+	private final double[] officeX;
+	private final double[] officeY;
+	private final NeighborTable[] tables;
+	private final int[][] neighborIds;
+	private final int[] held;
+	private final int[] peak;
+	private final long[] refusals;
+	private final double minX, maxX, minY, maxY;
+
+	// Packages in flight, one slot each.
+	private int[] at;
+	private int[] next;
+	private int[] hops;
+	private boolean[] redirected;
+	private double[] destX;
+	private double[] destY;
+	private long[] born;
+	private int[] free;
+	private int freeCount;
+	private int slots;
+
+	// Settings.
+	private final Layout layout;
+	private final int count;
+	private final double rate;
+	private final long delay;
+	private final long network;
+	private final int capacity;
+	private final ForwardingStage.Policy policy;
+	private final Random random;
+
+	// Results.
+	private final EventQueue queue = new EventQueue();
+	private final long[] latencies = new long[LATENCY_BUCKETS];
+	private long[] hopCounts = new long[64];
+	private long submitted;
+	private long rejected;
+	private long delivered;
+	private long lost;
+	private long redirects;
+	private long totalHops;
+	private long events;
+
+	/**
+	 * Creates a new simulator and lays out the offices.
+	 *
+	 * @param offices
+	 *            Number of offices.
+	 * @param count
+	 *            Number of packages.
+	 * @param rate
+	 *            Packages per second of virtual time.
+	 *
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if a setting is out of range.
+	 */
+	public Simulator(int offices, int count, double rate) {
+		if (offices <= 0 || count < 0 || rate <= 0) {
+			throw new IllegalArgumentException("Simulator: offices "
+					+ offices + " and rate " + rate + " must be positive.");
+		}
+		this.offices = offices;
+		this.count = count;
+		this.rate = rate;
+		layout = Layout.valueOf(System.getProperty(LAYOUT_PROPERTY, "uniform")
+				.toUpperCase());
+		random = new Random(Long.getLong(SEED_PROPERTY, 42L));
+		delay = 1000L * Long.getLong("GPSOffice.delay", 3000L);
+		network = (long) (1000.0 * Double.parseDouble(System.getProperty(
+				NETWORK_PROPERTY, "1")));
+		capacity = Integer.getInteger("GPSOffice.capacity", 100000);
+		policy = ForwardingStage.Policy.valueOf(System.getProperty(
+				"GPSOffice.admission", "REJECT").toUpperCase());
+
+		officeX = new double[offices];
+		officeY = new double[offices];
+		held = new int[offices];
+		peak = new int[offices];
+		refusals = new long[offices];
+		double side = Math.sqrt(offices) * SPACING;
+		double[] cx = new double[CLUSTERS];
+		double[] cy = new double[CLUSTERS];
+		for (int c = 0; c < CLUSTERS; c++) {
+			cx[c] = random.nextDouble() * side;
+			cy[c] = random.nextDouble() * side;
+		}
+		SpatialIndex index = new SpatialIndex(SPACING);
+		double x0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE;
+		double y0 = Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for (int i = 0; i < offices; i++) {
+			if (layout == Layout.UNIFORM) {
+				officeX[i] = random.nextDouble() * side;
+				officeY[i] = random.nextDouble() * side;
+			} else {
+				int c = random.nextInt(CLUSTERS);
+				officeX[i] = cx[c] + random.nextGaussian() * side / 40;
+				officeY[i] = cy[c] + random.nextGaussian() * side / 40;
+			}
+			index.put(name(i), officeX[i], officeY[i]);
+			x0 = Math.min(x0, officeX[i]);
+			x1 = Math.max(x1, officeX[i]);
+			y0 = Math.min(y0, officeY[i]);
+			y1 = Math.max(y1, officeY[i]);
+		}
+		minX = x0;
+		maxX = x1;
+		minY = y0;
+		maxY = y1;
+
+		// Every office's neighbors, as GPSOffice.refreshNeighbors finds them,
+		// and their office numbers.
+		tables = new NeighborTable[offices];
+		neighborIds = new int[offices][];
+		for (int i = 0; i < offices; i++) {
+			tables[i] = NeighborTable.of(index.nearest(officeX[i],
+					officeY[i], NEIGHBORS, name(i)), 1L);
+			neighborIds[i] = new int[tables[i].size()];
+			for (int j = 0; j < tables[i].size(); j++) {
+				neighborIds[i][j] = Integer.parseInt(tables[i].name(j)
+						.substring(6));
+			}
+		}
+
+		slots = 1024;
+		at = new int[slots];
+		next = new int[slots];
+		hops = new int[slots];
+		redirected = new boolean[slots];
+		destX = new double[slots];
+		destY = new double[slots];
+		born = new long[slots];
+		free = new int[slots];
+		for (int i = slots - 1; i >= 0; i--) {
+			free[freeCount++] = i;
+		}
+	}
+
+	/**
+	 * Runs the simulation to the end and prints the results.
+	 *
+	 * @exception IOException
+	 *                Thrown if the statistics file could not be written.
+	 */
+	public void run() throws IOException {
+		long start = System.nanoTime();
+		if (count > 0) {
+			queue.add(0L, SUBMIT);
+		}
+		while (!queue.isEmpty()) {
+			long event = queue.poll();
+			events++;
+			int id = (int) (event >>> TYPE_BITS);
+			switch ((int) (event & TYPE_MASK)) {
+			case SUBMIT:
+				submit();
+				break;
+			case DEPART:
+				depart(id);
+				break;
+			case RECEIVE:
+				receive(id);
+				break;
+			case ACK:
+				release(id);
+				break;
+			case REFUSED:
+				release(at[id]);
+				lose(id);
+				break;
+			default:
+				redirect(id);
+				break;
+			}
+		}
+		report((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * A customer submits a package at a random office, and the next
+	 * submission is scheduled.
+	 */
+	private void submit() {
+		long now = queue.now;
+		submitted++;
+		int origin = random.nextInt(offices);
+		if (admit(origin)) {
+			int p = allocate();
+			at[p] = origin;
+			hops[p] = 0;
+			redirected[p] = false;
+			destX[p] = minX + random.nextDouble() * (maxX - minX);
+			destY[p] = minY + random.nextDouble() * (maxY - minY);
+			born[p] = now;
+			arrive(p);
+		} else {
+			rejected++;
+		}
+		if (submitted < count) {
+			double gap = -Math.log(1.0 - random.nextDouble()) / rate;
+			queue.add(now + (long) (gap * 1e6), SUBMIT);
+		}
+	}
+
+	/**
+	 * A package has been admitted at the office it is at: its next hop is
+	 * chosen and it is parked for the transit delay.
+	 */
+	private void arrive(int p) {
+		int o = at[p];
+		int hop = tables[o].nextHop(destX[p], destY[p], officeX[o],
+				officeY[o], -1);
+		next[p] = hop < 0 ? -1 : neighborIds[o][hop];
+		queue.add(queue.now + delay, event(p, DEPART));
+	}
+
+	/**
+	 * A package's delay is over: it is delivered or sent on.
+	 */
+	private void depart(int p) {
+		if (next[p] < 0) {
+			long latency = (queue.now - born[p]) / 1000;
+			latencies[(int) Math.min(latency, LATENCY_BUCKETS - 1)]++;
+			if (hops[p] >= hopCounts.length) {
+				hopCounts = Arrays.copyOf(hopCounts, hops[p] * 2);
+			}
+			hopCounts[hops[p]]++;
+			totalHops += hops[p];
+			delivered++;
+			release(at[p]);
+			recycle(p);
+		} else {
+			queue.add(queue.now + network, event(p, RECEIVE));
+		}
+	}
+
+	/**
+	 * A package reaches its next office, which takes it or refuses it.
+	 */
+	private void receive(int p) {
+		long back = queue.now + network;
+		int sender = at[p];
+		if (admit(next[p])) {
+			queue.add(back, event(sender, ACK));
+			at[p] = next[p];
+			hops[p]++;
+			arrive(p);
+			return;
+		}
+		refusals[next[p]]++;
+		switch (policy) {
+		case SHED:
+			queue.add(back, event(sender, ACK));
+			lose(p);
+			break;
+		case REDIRECT:
+			queue.add(back, event(p, REDIRECT));
+			break;
+		default:
+			queue.add(back, event(p, REFUSED));
+			break;
+		}
+	}
+
+	/**
+	 * A package's next office asked for it to go elsewhere; it is sent once
+	 * to the nearest other neighbor which is nearer to the destination.
+	 */
+	private void redirect(int p) {
+		int o = at[p];
+		int hop = -1;
+		if (!redirected[p]) {
+			hop = tables[o].nextHop(destX[p], destY[p], officeX[o],
+					officeY[o], tables[o].indexOf(name(next[p])));
+		}
+		if (hop < 0) {
+			release(o);
+			lose(p);
+			return;
+		}
+		redirects++;
+		redirected[p] = true;
+		next[p] = neighborIds[o][hop];
+		queue.add(queue.now + network, event(p, RECEIVE));
+	}
+
+	private boolean admit(int o) {
+		if (held[o] >= capacity) {
+			return false;
+		}
+		if (++held[o] > peak[o]) {
+			peak[o] = held[o];
+		}
+		return true;
+	}
+
+	private void release(int o) {
+		held[o]--;
+	}
+
+	private void lose(int p) {
+		lost++;
+		recycle(p);
+	}
+
+	private int allocate() {
+		if (freeCount == 0) {
+			int grown = slots * 2;
+			at = Arrays.copyOf(at, grown);
+			next = Arrays.copyOf(next, grown);
+			hops = Arrays.copyOf(hops, grown);
+			redirected = Arrays.copyOf(redirected, grown);
+			destX = Arrays.copyOf(destX, grown);
+			destY = Arrays.copyOf(destY, grown);
+			born = Arrays.copyOf(born, grown);
+			free = Arrays.copyOf(free, grown);
+			for (int i = grown - 1; i >= slots; i--) {
+				free[freeCount++] = i;
+			}
+			slots = grown;
+		}
+		return free[--freeCount];
+	}
+
+	private void recycle(int p) {
+		free[freeCount++] = p;
+	}
+
+	private static long event(int id, int type) {
+		return ((long) id << TYPE_BITS) | type;
+	}
+
+	private static String name(int i) {
+		return "office" + i;
+	}
+
+	/**
+	 * Prints the results of the run, and appends them to the statistics file
+	 * if one is set.
+	 */
+	private void report(double seconds) throws IOException {
+		double virtual = queue.now / 1e6;
+		int busiest = 0;
+		int saturated = 0;
+		for (int o = 0; o < offices; o++) {
+			if (peak[o] > peak[busiest]) {
+				busiest = o;
+			}
+			if (refusals[o] > 0) {
+				saturated++;
+			}
+		}
+		double p50 = percentile(0.50), p90 = percentile(0.90);
+		double p99 = percentile(0.99), p999 = percentile(0.999);
+		double max = percentile(1.0);
+		double meanHops = delivered == 0 ? 0.0 : (double) totalHops
+				/ delivered;
+		int maxHops = 0;
+		for (int h = 0; h < hopCounts.length; h++) {
+			if (hopCounts[h] > 0) {
+				maxHops = h;
+			}
+		}
+
+		System.out.println("Offices " + offices + " "
+				+ layout.toString().toLowerCase() + ", " + count
+				+ " packages at " + rate + "/s (" + (long) (rate * 3600)
+				+ "/h), delay " + delay / 1000 + " ms, capacity " + capacity
+				+ ", " + policy.toString().toLowerCase());
+		System.out.printf("Virtual time %.1f s, %d events in %.2f s,"
+				+ " %.0f events/s%n", virtual, events, seconds, events
+				/ seconds);
+		System.out.println("Submitted " + submitted + ", rejected "
+				+ rejected + ", delivered " + delivered + ", lost " + lost
+				+ ", redirected " + redirects);
+		System.out.printf("Latency ms p50 %.0f p90 %.0f p99 %.0f p99.9 %.0f"
+				+ " max %.0f, hops mean %.2f max %d%n", p50, p90, p99, p999,
+				max, meanHops, maxHops);
+		System.out.println("Busiest office " + name(busiest) + " held "
+				+ peak[busiest] + " packages, " + saturated
+				+ " offices refused packages");
+
+		String file = System.getProperty(STATS_PROPERTY);
+		if (file == null) {
+			return;
+		}
+		boolean header = !new File(file).exists();
+		PrintWriter out = new PrintWriter(new FileWriter(file, true));
+		try {
+			if (header) {
+				out.println("offices,layout,packages,rate,delay_ms,network_ms,"
+						+ "capacity,policy,submitted,rejected,delivered,lost,"
+						+ "redirected,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,"
+						+ "mean_hops,max_hops,peak_held,saturated_offices,"
+						+ "virtual_s,events,wall_s");
+			}
+			out.printf("%d,%s,%d,%s,%d,%s,%d,%s,%d,%d,%d,%d,%d,%.0f,%.0f,"
+					+ "%.0f,%.0f,%.0f,%.3f,%d,%d,%d,%.3f,%d,%.3f%n", offices,
+					layout.toString().toLowerCase(), count, rate,
+					delay / 1000, network / 1000.0, capacity, policy
+							.toString().toLowerCase(), submitted, rejected,
+					delivered, lost, redirects, p50, p90, p99, p999, max,
+					meanHops, maxHops, peak[busiest], saturated, virtual,
+					events, seconds);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the given percentile of the delivered packages' latencies, in
+	 * milliseconds.
+	 */
+	private double percentile(double p) {
+		if (delivered == 0) {
+			return 0.0;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(p * delivered));
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			seen += latencies[i];
+			if (seen >= rank) {
+				return i;
+			}
+		}
+		return LATENCY_BUCKETS - 1;
+	}
+
+	/**
+	 * Simulator main program.
+	 *
+	 * @param String
+	 *            [] args
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			usage();
+		}
+		int offices;
+		int count;
+		double rate;
+		try {
+			offices = Integer.parseInt(args[0]);
+			count = Integer.parseInt(args[1]);
+			rate = Double.parseDouble(args[2]);
+		} catch (NumberFormatException exc) {
+			System.err.println(exc.getMessage() + " cannot be parsed");
+			usage();
+			return;
+		}
+		new Simulator(offices, count, rate).run();
+	}
+
+	/**
+	 * Print a usage message and exit.
+	 */
+	private static void usage() {
+		System.err.println("Usage: java Simulator <offices> <count> <rate>");
+		System.err.println("<offices> = Number of offices (integer)");
+		System.err.println("<count> = Number of packages (integer)");
+		System.err
+				.println("<rate> = Packages per second of virtual time (double)");
+		System.exit(1);
+	}
+}
@@ -0,0 +1,440 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Class SpatialIndex keeps the locations of the GPS offices known to an office
+ * in a uniform grid, so that the nearest offices to a point can be found in
+ * memory without asking the Registry Server or the offices themselves.
+ *
+ * The plane is divided into square cells of a fixed size. A nearest neighbor
+ * query visits rings of cells around the query point, growing outward, and
+ * stops as soon as no unvisited cell can hold an office closer than the ones
+ * already found. When the offices are so sparse that the rings would visit
+ * more cells than there are offices, the query scans the offices instead, so
+ * no query costs more than a linear scan.
+ */
+public class SpatialIndex {
+
+	/**
+	 * Class Entry is one office stored in the index.
+	 */
+	public static class Entry {
+
+		/**
+		 * The office's name.
+		 */
+		public final String name;
+
+		/**
+		 * The office location's X coordinate.
+		 */
+		public final double x;
+
+		/**
+		 * The office location's Y coordinate.
+		 */
+		public final double y;
+
+		/**
+		 * Creates a new index entry.
+		 *
+		 * @param name
+		 *            Office name.
+		 * @param x
+		 *            X coordinate.
+		 * @param y
+		 *            Y coordinate.
+		 */
+		public Entry(String name, double x, double y) {
+			this.name = name;
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * Returns the squared distance from this entry to the given point.
+		 */
+		public double distanceSq(double px, double py) {
+			double dx = px - x;
+			double dy = py - y;
+			return dx * dx + dy * dy;
+		}
+	}
+
+	/**
+	 * Cell coordinates are clamped to this range, so that ring arithmetic on
+	 * far away offices cannot overflow.
+	 */
+	private static final int MAX_CELL = 1 << 30;
+
+	/**
+	 * Number of sectors around a point in a reverse nearest neighbor query.
+	 */
+	private static final int SECTORS = 6;
+
+	/**
+	 * Side length of one grid cell.
+	 */
+	private final double cellSize;
+
+	/**
+	 * Entries of each occupied cell, keyed by the packed cell coordinates.
+	 */
+	private final HashMap<Long, ArrayList<Entry>> cells = new HashMap<Long, ArrayList<Entry>>();
+
+	/**
+	 * Entries keyed by office name.
+	 */
+	private final HashMap<String, Entry> byName = new HashMap<String, Entry>();
+
+	/**
+	 * Bounding box of the cells that were ever occupied.
+	 */
+	private int minCx = Integer.MAX_VALUE;
+	private int maxCx = Integer.MIN_VALUE;
+	private int minCy = Integer.MAX_VALUE;
+	private int maxCy = Integer.MIN_VALUE;
+
+	/**
+	 * Creates a new, empty spatial index.
+	 *
+	 * @param cellSize
+	 *            Side length of one grid cell. Should be about the typical
+	 *            distance between neighboring offices.
+	 *
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if cellSize is not positive.
+	 */
+	public SpatialIndex(double cellSize) {
+		if (!(cellSize > 0.0)) {
+			throw new IllegalArgumentException("Cell size: " + cellSize
+					+ " must be positive.");
+		}
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Adds an office to the index, replacing any previous location stored for
+	 * the same name.
+	 *
+	 * @param name
+	 *            Office name.
+	 * @param x
+	 *            X coordinate.
+	 * @param y
+	 *            Y coordinate.
+	 */
+	public synchronized void put(String name, double x, double y) {
+		remove(name);
+		Entry entry = new Entry(name, x, y);
+		int cx = cell(x);
+		int cy = cell(y);
+		Long key = key(cx, cy);
+		ArrayList<Entry> list = cells.get(key);
+		if (list == null) {
+			list = new ArrayList<Entry>(2);
+			cells.put(key, list);
+		}
+		list.add(entry);
+		byName.put(name, entry);
+		minCx = Math.min(minCx, cx);
+		maxCx = Math.max(maxCx, cx);
+		minCy = Math.min(minCy, cy);
+		maxCy = Math.max(maxCy, cy);
+	}
+
+	/**
+	 * Removes an office from the index.
+	 *
+	 * @param name
+	 *            Office name.
+	 *
+	 * @return The removed entry, or null if the office was not in the index.
+	 */
+	public synchronized Entry remove(String name) {
+		Entry entry = byName.remove(name);
+		if (entry == null) {
+			return null;
+		}
+		Long key = key(cell(entry.x), cell(entry.y));
+		ArrayList<Entry> list = cells.get(key);
+		list.remove(entry);
+		if (list.isEmpty()) {
+			cells.remove(key);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the entry stored for the given office, or null if there is none.
+	 */
+	public synchronized Entry get(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * Returns true if the given office is in the index.
+	 */
+	public synchronized boolean contains(String name) {
+		return byName.containsKey(name);
+	}
+
+	/**
+	 * Returns the number of offices in the index.
+	 */
+	public synchronized int size() {
+		return byName.size();
+	}
+
+	/**
+	 * Returns a snapshot of all the entries in the index.
+	 */
+	public synchronized List<Entry> entries() {
+		return new ArrayList<Entry>(byName.values());
+	}
+
+	/**
+	 * Finds the offices nearest to the given point.
+	 *
+	 * @param x
+	 *            X coordinate of the point.
+	 * @param y
+	 *            Y coordinate of the point.
+	 * @param k
+	 *            Maximum number of offices to return.
+	 * @param exclude
+	 *            Name of an office to leave out of the result, or null.
+	 *
+	 * @return Up to k entries, nearest first. Offices at the same distance are
+	 *         ordered by name.
+	 */
+	public synchronized List<Entry> nearest(double x, double y, int k,
+			String exclude) {
+		return search(x, y, k, exclude, -1);
+	}
+
+	/**
+	 * Finds the offices which have the given office among their k nearest
+	 * offices in this index. Used to find out which offices need to repair
+	 * their neighbors when the given office fails.
+	 *
+	 * Around the office the plane is split into six 60 degree sectors. An
+	 * office in a sector which has k other offices of that sector strictly
+	 * nearer to the given office than itself, but not at its very location,
+	 * is strictly nearer to each of those than to the given office, so it
+	 * cannot have the given office as a neighbor. Only the offices of each
+	 * sector up to the k-th such distance are therefore candidates, and only
+	 * they are checked with a nearest neighbor query of their own.
+	 *
+	 * @param name
+	 *            Office name.
+	 * @param k
+	 *            Number of neighbors each office keeps.
+	 *
+	 * @return Entries of the offices that have the given office as a neighbor.
+	 *         Empty if the office is not in the index.
+	 */
+	public synchronized List<Entry> reverseNearest(String name, int k) {
+		ArrayList<Entry> result = new ArrayList<Entry>();
+		Entry target = byName.get(name);
+		if (target == null || k <= 0) {
+			return result;
+		}
+		for (int sector = 0; sector < SECTORS; sector++) {
+			for (Entry entry : candidates(target, k, sector)) {
+				if (search(entry.x, entry.y, k, entry.name, -1).contains(
+						target)) {
+					result.add(entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the offices of one sector around the target up to the k-th
+	 * distance greater than 0, ties included.
+	 */
+	private List<Entry> candidates(Entry target, int k, int sector) {
+		for (int wanted = k;; wanted *= 2) {
+			List<Entry> found = search(target.x, target.y, wanted,
+					target.name, sector);
+			double kth = -1.0;
+			int positive = 0;
+			for (Entry entry : found) {
+				double d = entry.distanceSq(target.x, target.y);
+				if (d > 0.0 && ++positive == k) {
+					kth = d;
+					break;
+				}
+			}
+			Entry last = found.isEmpty() ? null : found.get(found.size() - 1);
+			if (found.size() < wanted) {
+				kth = Double.POSITIVE_INFINITY;
+			} else if (kth < 0.0
+					|| last.distanceSq(target.x, target.y) <= kth) {
+				// More offices may be at the k-th distance or nearer.
+				continue;
+			}
+			ArrayList<Entry> result = new ArrayList<Entry>(found.size());
+			for (Entry entry : found) {
+				if (entry.distanceSq(target.x, target.y) <= kth) {
+					result.add(entry);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Finds the offices nearest to the given point, optionally only those in
+	 * one sector around it.
+	 *
+	 * @param sector
+	 *            Sector the offices must lie in, or -1 for any.
+	 */
+	private List<Entry> search(final double x, final double y, int k,
+			String exclude, int sector) {
+		if (k <= 0 || byName.isEmpty()) {
+			return new ArrayList<Entry>(0);
+		}
+
+		// Max-heap on distance, so the worst of the k best is on top.
+		final Comparator<Entry> nearer = new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				int c = Double.compare(a.distanceSq(x, y), b.distanceSq(x, y));
+				return c != 0 ? c : a.name.compareTo(b.name);
+			}
+		};
+		PriorityQueue<Entry> best = new PriorityQueue<Entry>(k + 1,
+				Collections.reverseOrder(nearer));
+
+		long cx0 = cell(x);
+		long cy0 = cell(y);
+		long rStart = Math.max(Math.max(minCx - cx0, cx0 - maxCx),
+				Math.max(minCy - cy0, cy0 - maxCy));
+		long rEnd = Math.max(Math.max(cx0 - minCx, maxCx - cx0),
+				Math.max(cy0 - minCy, maxCy - cy0));
+		// A ring of radius r has 8r cells; once more cells than entries would
+		// be visited, a scan of the entries is cheaper.
+		long budget = byName.size();
+		long visited = 0;
+		for (long r = Math.max(rStart, 0); r <= rEnd; r++) {
+			// Every office outside rings 0..r-1 is at least (r-1) cells
+			// away, so stop once the k found are all closer than that.
+			if (best.size() == k) {
+				double reach = (r - 1) * cellSize;
+				if (r > 0 && best.peek().distanceSq(x, y) < reach * reach) {
+					break;
+				}
+			}
+			visited += Math.max(1, 8 * r);
+			if (visited > budget) {
+				return scan(x, y, k, exclude, sector, nearer);
+			}
+			long lo = Math.max(cx0 - r, minCx);
+			long hi = Math.min(cx0 + r, maxCx);
+			for (long cx = lo; cx <= hi; cx++) {
+				collect(cx, cy0 - r, x, y, k, exclude, sector, best, nearer);
+				if (r > 0) {
+					collect(cx, cy0 + r, x, y, k, exclude, sector, best,
+							nearer);
+				}
+			}
+			lo = Math.max(cy0 - r + 1, minCy);
+			hi = Math.min(cy0 + r - 1, maxCy);
+			for (long cy = lo; cy <= hi; cy++) {
+				collect(cx0 - r, cy, x, y, k, exclude, sector, best, nearer);
+				if (r > 0) {
+					collect(cx0 + r, cy, x, y, k, exclude, sector, best,
+							nearer);
+				}
+			}
+		}
+
+		ArrayList<Entry> result = new ArrayList<Entry>(best);
+		Collections.sort(result, nearer);
+		return result;
+	}
+
+	/**
+	 * Finds the nearest offices by looking at every entry.
+	 */
+	private List<Entry> scan(double x, double y, int k, String exclude,
+			int sector, Comparator<Entry> nearer) {
+		PriorityQueue<Entry> best = new PriorityQueue<Entry>(k + 1,
+				Collections.reverseOrder(nearer));
+		for (Entry entry : byName.values()) {
+			offer(entry, x, y, k, exclude, sector, best, nearer);
+		}
+		ArrayList<Entry> result = new ArrayList<Entry>(best);
+		Collections.sort(result, nearer);
+		return result;
+	}
+
+	/**
+	 * Offers the entries of one cell to the k best found so far.
+	 */
+	private void collect(long cx, long cy, double x, double y, int k,
+			String exclude, int sector, PriorityQueue<Entry> best,
+			Comparator<Entry> nearer) {
+		if (cx < minCx || cx > maxCx || cy < minCy || cy > maxCy) {
+			return;
+		}
+		ArrayList<Entry> list = cells.get(key((int) cx, (int) cy));
+		if (list == null) {
+			return;
+		}
+		for (int i = 0; i < list.size(); i++) {
+			offer(list.get(i), x, y, k, exclude, sector, best, nearer);
+		}
+	}
+
+	/**
+	 * Offers one entry to the k best found so far.
+	 */
+	private static void offer(Entry entry, double x, double y, int k,
+			String exclude, int sector, PriorityQueue<Entry> best,
+			Comparator<Entry> nearer) {
+		if (entry.name.equals(exclude)) {
+			return;
+		}
+		if (sector >= 0 && sector(entry.x - x, entry.y - y) != sector) {
+			return;
+		}
+		if (best.size() < k) {
+			best.add(entry);
+		} else if (nearer.compare(entry, best.peek()) < 0) {
+			best.poll();
+			best.add(entry);
+		}
+	}
+
+	/**
+	 * Returns the 60 degree sector, 0 to 5, that the given offset points
+	 * into.
+	 */
+	private static int sector(double dx, double dy) {
+		double angle = Math.atan2(dy, dx) + Math.PI;
+		return Math.min(SECTORS - 1, (int) (angle / (Math.PI / 3)));
+	}
+
+	/**
+	 * Returns the grid cell holding the given coordinate.
+	 */
+	private int cell(double v) {
+		double c = Math.floor(v / cellSize);
+		return (int) Math.max(-MAX_CELL, Math.min(MAX_CELL, c));
+	}
+
+	/**
+	 * Packs the coordinates of a cell into one map key.
+	 */
+	private static Long key(int cx, int cy) {
+		return Long.valueOf(((long) cx << 32) | (cy & 0xffffffffL));
+	}
+}
@@ -0,0 +1,166 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Class TrackingIndex maps tracking numbers to numbers, such as the latest
+ * journal record of each package, in an open addressing hash table held in
+ * direct byte buffers outside the Java heap. An entry takes 16 bytes, the key
+ * and the value, and the table doubles when it is 70% full, so millions of
+ * packages cost the garbage collector nothing. Tracking number 0 marks an
+ * empty slot and cannot be stored.
+ *
+ * The table is not thread safe; its owner must lock around it.
+ */
+public class TrackingIndex {
+
+	private static final int ENTRY = 16;
+
+	/**
+	 * Slots per buffer, so that no buffer is larger than 1 GB.
+	 */
+	private static final int CHUNK_BITS = 26;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	private static final double LOAD = 0.7;
+
+	private ByteBuffer[] chunks;
+	private long capacity;
+	private long mask;
+	private long size;
+
+	/**
+	 * Creates a new, empty index.
+	 *
+	 * @param expected
+	 *            Number of entries expected; the table grows beyond it as
+	 *            needed.
+	 */
+	public TrackingIndex(long expected) {
+		long slots = 1024;
+		while (slots * LOAD < expected) {
+			slots *= 2;
+		}
+		allocate(slots);
+	}
+
+	/**
+	 * Returns the value stored for a tracking number, or -1 if there is none.
+	 *
+	 * @param trackingNumber
+	 *            Tracking number, not 0.
+	 */
+	public long get(long trackingNumber) {
+		for (long slot = hash(trackingNumber) & mask;; slot = (slot + 1) & mask) {
+			long key = key(slot);
+			if (key == trackingNumber) {
+				return value(slot);
+			}
+			if (key == 0) {
+				return -1L;
+			}
+		}
+	}
+
+	/**
+	 * Stores a value for a tracking number, replacing the one stored before.
+	 *
+	 * @param trackingNumber
+	 *            Tracking number, not 0.
+	 * @param value
+	 *            Value.
+	 *
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if the tracking number is 0.
+	 */
+	public void put(long trackingNumber, long value) {
+		if (trackingNumber == 0) {
+			throw new IllegalArgumentException(
+					"Tracking index: tracking number 0 cannot be stored.");
+		}
+		if (size + 1 > capacity * LOAD) {
+			grow();
+		}
+		if (insert(trackingNumber, value)) {
+			size++;
+		}
+	}
+
+	/**
+	 * Returns the number of tracking numbers stored.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes the table takes outside the heap.
+	 */
+	public long bytes() {
+		return capacity * ENTRY;
+	}
+
+	/**
+	 * Stores an entry without growing the table.
+	 *
+	 * @return True if the tracking number was new.
+	 */
+	private boolean insert(long trackingNumber, long value) {
+		for (long slot = hash(trackingNumber) & mask;; slot = (slot + 1) & mask) {
+			long key = key(slot);
+			if (key == 0 || key == trackingNumber) {
+				ByteBuffer chunk = chunks[(int) (slot >>> CHUNK_BITS)];
+				int offset = (int) (slot & CHUNK_MASK) * ENTRY;
+				chunk.putLong(offset + 8, value);
+				chunk.putLong(offset, trackingNumber);
+				return key == 0;
+			}
+		}
+	}
+
+	private void grow() {
+		ByteBuffer[] old = chunks;
+		long oldCapacity = capacity;
+		allocate(capacity * 2);
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			ByteBuffer chunk = old[(int) (slot >>> CHUNK_BITS)];
+			int offset = (int) (slot & CHUNK_MASK) * ENTRY;
+			long key = chunk.getLong(offset);
+			if (key != 0) {
+				insert(key, chunk.getLong(offset + 8));
+			}
+		}
+	}
+
+	private void allocate(long slots) {
+		capacity = slots;
+		mask = slots - 1;
+		int perChunk = (int) Math.min(slots, 1L << CHUNK_BITS);
+		chunks = new ByteBuffer[(int) ((slots + perChunk - 1) / perChunk)];
+		for (int i = 0; i < chunks.length; i++) {
+			// Direct buffers start zeroed, that is, empty.
+			chunks[i] = ByteBuffer.allocateDirect(perChunk * ENTRY);
+		}
+	}
+
+	private long key(long slot) {
+		return chunks[(int) (slot >>> CHUNK_BITS)]
+				.getLong((int) (slot & CHUNK_MASK) * ENTRY);
+	}
+
+	private long value(long slot) {
+		return chunks[(int) (slot >>> CHUNK_BITS)]
+				.getLong((int) (slot & CHUNK_MASK) * ENTRY + 8);
+	}
+
+	/**
+	 * Spreads the bits of a tracking number, whose low bits are a sequence
+	 * number and whose high bits change slowly.
+	 */
+	private static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
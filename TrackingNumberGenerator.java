@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class TrackingNumberGenerator hands out 64-bit package tracking numbers that
+ * are unique across the GPS tracking system, given that no two running
+ * offices share an office id (see OfficeId). A tracking number is made of
+ * three parts, from high bits to low:
+ * 
+ * 41 bits: milliseconds since 2020-01-01 00:00 UTC.
+ * 13 bits: the id of the office that made the number.
+ * 9 bits: a sequence number within the millisecond.
+ * 
+ * So up to 8192 offices can run at once, and an office can make 512 numbers
+ * per millisecond, 512,000 a second. If it needs more, it borrows the next
+ * millisecond instead of waiting, and its numbers run ahead of the clock. If
+ * the system clock goes backwards, the generator keeps counting from the
+ * latest time it has used, so a number is never handed out twice.
+ */
+public class TrackingNumberGenerator {
+
+	private static final long EPOCH = 1577836800000L;
+	private static final int OFFICE_BITS = 13;
+	private static final int SEQUENCE_BITS = 9;
+	private static final long OFFICE_MASK = (1L << OFFICE_BITS) - 1;
+	private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+	/**
+	 * Number of office ids.
+	 */
+	public static final int OFFICES = 1 << OFFICE_BITS;
+
+	/**
+	 * This office's id, already shifted into place.
+	 */
+	private final long officeBits;
+
+	/**
+	 * Last time used and last sequence number, packed as time << 9 | seq.
+	 */
+	private final AtomicLong state = new AtomicLong();
+
+	/**
+	 * Creates a new tracking number generator.
+	 * 
+	 * @param officeId
+	 *            Id of the office, 0 to 8191. Two offices running at the same
+	 *            time must not share an id.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if officeId is out of range.
+	 */
+	public TrackingNumberGenerator(int officeId) {
+		if (officeId < 0 || officeId > OFFICE_MASK) {
+			throw new IllegalArgumentException("Office id: " + officeId
+					+ " must be between 0 and " + OFFICE_MASK + ".");
+		}
+		this.officeBits = (long) officeId << SEQUENCE_BITS;
+	}
+
+	/**
+	 * Derives an office id from an office name. Different names can map to the
+	 * same id, so this is only where an office starts looking for a free id;
+	 * see OfficeId.
+	 * 
+	 * @param officeName
+	 *            Office name.
+	 * 
+	 * @return Office id, 0 to 8191.
+	 */
+	public static int officeId(String officeName) {
+		int h = officeName.hashCode();
+		return (int) ((h ^ (h >>> OFFICE_BITS) ^ (h >>> 2 * OFFICE_BITS)) & OFFICE_MASK);
+	}
+
+	/**
+	 * Returns a new tracking number.
+	 * 
+	 * @return long
+	 */
+	public long next() {
+		for (;;) {
+			long last = state.get();
+			long lastTime = last >>> SEQUENCE_BITS;
+			long time = Math.max(System.currentTimeMillis() - EPOCH, lastTime);
+			long seq = 0;
+			if (time == lastTime) {
+				seq = (last & SEQUENCE_MASK) + 1;
+				if (seq > SEQUENCE_MASK) {
+					time++;
+					seq = 0;
+				}
+			}
+			if (state.compareAndSet(last, (time << SEQUENCE_BITS) | seq)) {
+				return (time << (OFFICE_BITS + SEQUENCE_BITS)) | officeBits
+						| seq;
+			}
+		}
+	}
+
+	/**
+	 * Returns the time in milliseconds since 1970-01-01 00:00 UTC at which the
+	 * given tracking number was made.
+	 */
+	public static long timeOf(long trackingNumber) {
+		return (trackingNumber >>> (OFFICE_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+
+	/**
+	 * Returns the id of the office that made the given tracking number.
+	 */
+	public static int officeOf(long trackingNumber) {
+		return (int) ((trackingNumber >>> SEQUENCE_BITS) & OFFICE_MASK);
+	}
+}
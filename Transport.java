@@ -0,0 +1,156 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+import edu.rit.ds.RemoteEventListener;
+import edu.rit.ds.registry.NotBoundException;
+
+/**
+ * Interface Transport is how a GPS office sends packets to its neighbors.
+ * Java RMI is the default; other transports can be chosen per deployment with
+ * the GPSOffice.transport system property.
+ */
+public interface Transport {
+
+	/**
+	 * Interface Receiver is told about packets that arrive through a
+	 * transport other than RMI.
+	 */
+	public interface Receiver {
+
+		/**
+		 * Takes in a packet sent by another office.
+		 * 
+		 * @param request
+		 *            Packet.
+		 * @param listener
+		 *            Listener of the customer who sent the packet.
+		 */
+		public void receive(Packet request,
+				RemoteEventListener<NodeEvent> listener);
+
+		/**
+		 * Takes in an acknowledgement sent by another office.
+		 * 
+		 * @param trackingNumber
+		 *            Tracking number of the packet.
+		 * @param hops
+		 *            Hop count of the packet as the other office received it.
+		 * @param officeName
+		 *            Name of the acknowledging office.
+		 * @param ack
+		 *            Acknowledgement.
+		 */
+		public void acknowledged(long trackingNumber, int hops,
+				String officeName, GPSOfficeRef.Ack ack);
+	}
+
+	/**
+	 * Sends a packet to another GPS office.
+	 * 
+	 * @param office
+	 *            Remote reference to the office.
+	 * @param officeName
+	 *            The office's name.
+	 * @param request
+	 *            Packet.
+	 * @param listener
+	 *            Listener of the customer who sent the packet.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if the office could not be reached.
+	 * @exception NotBoundException
+	 *                Thrown when a bound error occurs.
+	 */
+	public void forward(GPSOfficeRef office, String officeName,
+			Packet request, RemoteEventListener<NodeEvent> listener)
+			throws RemoteException, NotBoundException;
+
+	/**
+	 * Sends a batch of packets to another GPS office.
+	 * 
+	 * @param office
+	 *            Remote reference to the office.
+	 * @param officeName
+	 *            The office's name.
+	 * @param requests
+	 *            Packets.
+	 * @param listeners
+	 *            Listener of each packet, in the same order.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if the office could not be reached.
+	 */
+	public void forwardAll(GPSOfficeRef office, String officeName,
+			List<Packet> requests, List<RemoteEventListener<NodeEvent>> listeners)
+			throws RemoteException;
+
+	/**
+	 * Tells the office that sent a packet whether this office took it.
+	 * 
+	 * @param office
+	 *            Remote reference to the sending office.
+	 * @param officeName
+	 *            The sending office's name.
+	 * @param trackingNumber
+	 *            Tracking number of the packet.
+	 * @param hops
+	 *            Hop count of the packet as it was received.
+	 * @param self
+	 *            Name of this office.
+	 * @param ack
+	 *            Acknowledgement.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if the office could not be reached.
+	 */
+	public void acknowledge(GPSOfficeRef office, String officeName,
+			long trackingNumber, int hops, String self, GPSOfficeRef.Ack ack)
+			throws RemoteException;
+
+	/**
+	 * Tells the office that sent a batch of packets whether this office took
+	 * each of them. Element i of each array belongs to the same packet.
+	 * 
+	 * @param office
+	 *            Remote reference to the sending office.
+	 * @param officeName
+	 *            The sending office's name.
+	 * @param trackingNumbers
+	 *            Tracking numbers of the packets.
+	 * @param hops
+	 *            Hop counts of the packets as they were received.
+	 * @param self
+	 *            Name of this office.
+	 * @param acks
+	 *            Acknowledgements.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if the office could not be reached.
+	 */
+	public void acknowledgeAll(GPSOfficeRef office, String officeName,
+			long[] trackingNumbers, int[] hops, String self,
+			GPSOfficeRef.Ack[] acks) throws RemoteException;
+
+	/**
+	 * Returns the address other offices use to reach this office through
+	 * this transport, as host:port, or null if they use the remote reference.
+	 */
+	public String endpoint();
+
+	/**
+	 * Tells this transport another office's address, from the descriptor
+	 * this office already has, so that the office need not be asked for it.
+	 * 
+	 * @param officeName
+	 *            The other office's name.
+	 * @param endpoint
+	 *            The other office's address, as its endpoint method returned
+	 *            it.
+	 */
+	public void address(String officeName, String endpoint);
+
+	/**
+	 * Closes the transport and all its connections.
+	 */
+	public void close();
+}
@@ -0,0 +1,129 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Class Bench is a small benchmark harness. It warms an operation up, runs it
+ * for a fixed time and prints one line per result with the rate, the bytes
+ * allocated per operation and, where it applies, an extra measure such as
+ * serialized bytes per hop. The lines have fixed columns so the output of two
+ * runs can be compared with diff.
+ *
+ * The benchmarks are plain programs because every class of the GPS tracking
+ * system is in the default package, which JMH does not support. The script
+ * benchmarks/run.sh compiles them with the system and runs one of them; the
+ * edu.rit.ds library is not in the repository, so DS_JAR names its jar:
+ *
+ * DS_JAR=/path/to/edu.rit.ds.jar benchmarks/run.sh RoutingBenchmark [sizes]
+ *
+ * Bench.warmup and Bench.time set the warm-up and measuring time in
+ * milliseconds (default 1000 and 3000).
+ */
+public class Bench {
+
+	/**
+	 * Interface Op is the operation being measured.
+	 */
+	public interface Op {
+
+		/**
+		 * Performs the operation a number of times.
+		 *
+		 * @param n
+		 *            Number of operations.
+		 *
+		 * @return A value computed from the results, so that the work is not
+		 *         optimized away.
+		 */
+		public long run(int n);
+	}
+
+	private static final long WARMUP = Long.getLong("Bench.warmup", 1000L);
+	private static final long TIME = Long.getLong("Bench.time", 3000L);
+
+	/**
+	 * Topology sizes used when none are given on the command line.
+	 */
+	public static final int[] SIZES = { 10, 100, 1000, 10000, 100000 };
+
+	/**
+	 * Results are folded in here so the JIT cannot drop the work.
+	 */
+	public static volatile long sink;
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private Bench() {
+	}
+
+	/**
+	 * Measures an operation and prints the result.
+	 *
+	 * @param name
+	 *            Benchmark name.
+	 * @param params
+	 *            Parameters of this run, such as layout and size.
+	 * @param op
+	 *            Operation.
+	 * @param extra
+	 *            Extra measure to print, or null.
+	 */
+	public static void measure(String name, String params, Op op, String extra) {
+		int batch = 1;
+		long end = System.nanoTime() + WARMUP * 1000000L;
+		while (System.nanoTime() < end) {
+			long t = System.nanoTime();
+			sink += op.run(batch);
+			if (System.nanoTime() - t < 10000000L) {
+				batch = Math.min(batch * 2, 1 << 24);
+			}
+		}
+
+		long ops = 0;
+		long thread = Thread.currentThread().getId();
+		long allocated = allocated(thread);
+		long start = System.nanoTime();
+		end = start + TIME * 1000000L;
+		long now;
+		do {
+			sink += op.run(batch);
+			ops += batch;
+			now = System.nanoTime();
+		} while (now < end);
+		long bytes = allocated(thread) - allocated;
+
+		double rate = ops * 1e9 / (now - start);
+		System.out.println(String.format("%-22s %-26s %14.1f ops/s %10.1f B/op%s",
+				name, params, rate, bytes < 0 ? Double.NaN : (double) bytes
+						/ ops, extra == null ? "" : "  " + extra));
+	}
+
+	/**
+	 * Parses topology sizes from the command line, or returns the defaults.
+	 */
+	public static int[] sizes(String[] args) {
+		if (args.length == 0) {
+			return SIZES;
+		}
+		int[] sizes = new int[args.length];
+		for (int i = 0; i < args.length; i++) {
+			sizes[i] = Integer.parseInt(args[i]);
+		}
+		return sizes;
+	}
+
+	private static long allocated(long thread) {
+		return THREADS == null ? -1L : THREADS.getThreadAllocatedBytes(thread);
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Class NeighborBenchmark measures the neighbor maintenance an office does in
+ * memory, on synthetic topologies of every size and layout:
+ *
+ * join: an office joins; it is added to the spatial index and its neighbor
+ * table is built, as GPSOffice.neighbors and officeBound do. It then leaves
+ * again so the topology keeps its size.
+ *
+ * refresh: an office's neighbor table is rebuilt from the index, as
+ * refreshNeighbors does.
+ *
+ * repair: the offices which had a failed office as a neighbor are found, as
+ * recomputeNeighbors does.
+ *
+ * Usage: java NeighborBenchmark [sizes...]
+ */
+public class NeighborBenchmark {
+
+	private static final int NEIGHBORS = 3;
+	private static final int POINTS = 1024;
+
+	public static void main(String[] args) {
+		for (int n : Bench.sizes(args)) {
+			for (Topology.Layout layout : Topology.Layout.values()) {
+				run(new Topology(layout, n, 42L), layout);
+			}
+		}
+	}
+
+	private static void run(final Topology topology, Topology.Layout layout) {
+		final int n = topology.names.length;
+		final SpatialIndex index = topology.index;
+		Random random = new Random(7L);
+		final String[] joiners = new String[POINTS];
+		final double[] px = new double[POINTS];
+		final double[] py = new double[POINTS];
+		final int[] office = new int[POINTS];
+		for (int i = 0; i < POINTS; i++) {
+			joiners[i] = "joiner" + i;
+			px[i] = random.nextDouble() * topology.side;
+			py[i] = random.nextDouble() * topology.side;
+			office[i] = random.nextInt(n);
+		}
+		String params = layout.toString().toLowerCase() + " " + topology;
+
+		Bench.measure("join", params, new Bench.Op() {
+			int next;
+
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					int p = next++ & (POINTS - 1);
+					index.put(joiners[p], px[p], py[p]);
+					List<SpatialIndex.Entry> nearest = index.nearest(px[p],
+							py[p], NEIGHBORS, joiners[p]);
+					sum += NeighborTable.of(nearest, 1L).size();
+					index.remove(joiners[p]);
+				}
+				return sum;
+			}
+		}, null);
+
+		Bench.measure("refresh", params, new Bench.Op() {
+			int next;
+
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					int o = office[next++ & (POINTS - 1)];
+					sum += topology.table(o, NEIGHBORS).size();
+				}
+				return sum;
+			}
+		}, null);
+
+		Bench.measure("repair", params, new Bench.Op() {
+			int next;
+
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					int o = office[next++ & (POINTS - 1)];
+					sum += index.reverseNearest(topology.names[o], NEIGHBORS)
+							.size();
+				}
+				return sum;
+			}
+		}, null);
+	}
+}
@@ -0,0 +1,125 @@
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Class RoutingBenchmark measures the next hop decision that calculate.check
+ * and GPSOffice.route make for every package at every office, on synthetic
+ * topologies of every size and layout:
+ *
+ * decision: one decision at a random office, straight through the routing
+ * kernel, as made on a cache miss.
+ *
+ * decision.cached: the same through a warm NextHopCache, as made for
+ * destinations seen before.
+ *
+ * route: a whole route from a random office to a random destination, one
+ * decision per hop; the mean hop count is printed alongside.
+ *
+ * Usage: java RoutingBenchmark [sizes...]
+ */
+public class RoutingBenchmark {
+
+	private static final int NEIGHBORS = 3;
+	private static final int DESTINATIONS = 4096;
+	private static final int CACHED_OFFICES = 64;
+
+	public static void main(String[] args) {
+		for (int n : Bench.sizes(args)) {
+			for (Topology.Layout layout : Topology.Layout.values()) {
+				run(new Topology(layout, n, 42L), layout);
+			}
+		}
+	}
+
+	private static void run(final Topology topology, Topology.Layout layout) {
+		final int n = topology.names.length;
+		final NeighborTable[] tables = new NeighborTable[n];
+		final int[][] hops = new int[n][];
+		HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		for (int i = 0; i < n; i++) {
+			ids.put(topology.names[i], i);
+		}
+		for (int i = 0; i < n; i++) {
+			tables[i] = topology.table(i, NEIGHBORS);
+			hops[i] = new int[tables[i].size()];
+			for (int j = 0; j < tables[i].size(); j++) {
+				hops[i][j] = ids.get(tables[i].name(j));
+			}
+		}
+
+		Random random = new Random(7L);
+		final double[] dx = new double[DESTINATIONS];
+		final double[] dy = new double[DESTINATIONS];
+		final int[] from = new int[DESTINATIONS];
+		for (int i = 0; i < DESTINATIONS; i++) {
+			int target = random.nextInt(n);
+			dx[i] = topology.x[target] + random.nextGaussian();
+			dy[i] = topology.y[target] + random.nextGaussian();
+			from[i] = random.nextInt(n);
+		}
+		final double[] selfX = topology.x;
+		final double[] selfY = topology.y;
+		String params = layout.toString().toLowerCase() + " " + topology;
+
+		Bench.measure("decision", params, new Bench.Op() {
+			int next;
+
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					int d = next++ & (DESTINATIONS - 1);
+					int office = from[d];
+					sum += tables[office].nextHop(dx[d], dy[d], selfX[office],
+							selfY[office], -1);
+				}
+				return sum;
+			}
+		}, null);
+
+		final int cached = Math.min(CACHED_OFFICES, n);
+		final NextHopCache[] caches = new NextHopCache[cached];
+		for (int i = 0; i < cached; i++) {
+			caches[i] = new NextHopCache(DESTINATIONS, 1.0);
+		}
+		Bench.measure("decision.cached", params, new Bench.Op() {
+			int next;
+
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					int d = next++ & (DESTINATIONS - 1);
+					int office = d % cached;
+					sum += caches[office].nextHop(tables[office],
+							selfX[office], selfY[office], dx[d], dy[d]);
+				}
+				return sum;
+			}
+		}, null);
+
+		final Bench.Op route = new Bench.Op() {
+			int next;
+
+			public long run(int count) {
+				long decisions = 0;
+				for (int i = 0; i < count; i++) {
+					int d = next++ & (DESTINATIONS - 1);
+					int office = from[d];
+					for (int hop = 0; hop < n; hop++) {
+						decisions++;
+						int j = tables[office].nextHop(dx[d], dy[d],
+								selfX[office], selfY[office], -1);
+						if (j < 0) {
+							break;
+						}
+						office = hops[office][j];
+					}
+				}
+				return decisions;
+			}
+		};
+		// Every destination once, to count the hops of an average route.
+		double perRoute = (double) route.run(DESTINATIONS) / DESTINATIONS - 1;
+		Bench.measure("route", params, route, String.format("%.2f hops/route",
+				perRoute));
+	}
+}
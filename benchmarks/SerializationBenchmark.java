@@ -0,0 +1,186 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+
+/**
+ * Class SerializationBenchmark measures what crosses the network at every
+ * hop: the Packet sent to the next office and the NodeEvent sent to each
+ * listener, and for comparison the Customer the offices passed around before
+ * the Packet replaced it. Each object is written the way it travels:
+ *
+ * customer.rmi: the old format, a serialized Customer, which extended Thread
+ * and carried its coordinates as Doubles.
+ *
+ * packet.rmi, event.rmi: Java serialization into a fresh stream, as an RMI
+ * call marshals its arguments.
+ *
+ * packet.frame: the binary format the NIO transport frames, without the
+ * listener reference.
+ *
+ * The encode and decode rates are printed, with the bytes per hop alongside.
+ *
+ * Usage: java SerializationBenchmark
+ */
+public class SerializationBenchmark {
+
+	/**
+	 * Class LegacyCustomer has the fields of the Customer that used to travel
+	 * from office to office.
+	 */
+	private static class LegacyCustomer extends Thread implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public final long trackingnumber;
+		public final Double X;
+		public final Double Y;
+		public final String originalNode;
+
+		LegacyCustomer(long trackingnumber, Double X, Double Y,
+				String originalNode) {
+			this.trackingnumber = trackingnumber;
+			this.X = X;
+			this.Y = Y;
+			this.originalNode = originalNode;
+		}
+	}
+
+	public static void main(String[] args) {
+		final Packet packet = new Packet(123456789012345L, 123.456, 654.321,
+				"office1234").nextHop("office5678");
+		final NodeEvent event = new NodeEvent(NodeEvent.Type.DEPARTED,
+				"office5678", packet);
+		final LegacyCustomer customer = new LegacyCustomer(123456789012345L,
+				123.456, 654.321, "office1234");
+
+		final byte[] customerBytes = serialize(customer);
+		String perCustomer = customerBytes.length + " bytes/hop";
+		Bench.measure("customer.rmi.encode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += serialize(customer).length;
+				}
+				return sum;
+			}
+		}, perCustomer);
+		Bench.measure("customer.rmi.decode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += ((LegacyCustomer) deserialize(customerBytes)).trackingnumber;
+				}
+				return sum;
+			}
+		}, perCustomer);
+
+		final byte[] packetBytes = serialize(packet);
+		String perHop = packetBytes.length + " bytes/hop";
+		Bench.measure("packet.rmi.encode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += serialize(packet).length;
+				}
+				return sum;
+			}
+		}, perHop);
+		Bench.measure("packet.rmi.decode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += ((Packet) deserialize(packetBytes)).getHops();
+				}
+				return sum;
+			}
+		}, perHop);
+
+		final byte[] frameBytes = frame(packet);
+		String perFrame = frameBytes.length + " bytes/hop";
+		Bench.measure("packet.frame.encode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += frame(packet).length;
+				}
+				return sum;
+			}
+		}, perFrame);
+		Bench.measure("packet.frame.decode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				try {
+					for (int i = 0; i < count; i++) {
+						sum += Packet.readFrom(
+								new DataInputStream(new ByteArrayInputStream(
+										frameBytes))).getHops();
+					}
+				} catch (IOException exc) {
+					throw new UncheckedIOException(exc);
+				}
+				return sum;
+			}
+		}, perFrame);
+
+		final byte[] eventBytes = serialize(event);
+		String perEvent = eventBytes.length + " bytes/event";
+		Bench.measure("event.rmi.encode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += serialize(event).length;
+				}
+				return sum;
+			}
+		}, perEvent);
+		Bench.measure("event.rmi.decode", "", new Bench.Op() {
+			public long run(int count) {
+				long sum = 0;
+				for (int i = 0; i < count; i++) {
+					sum += ((NodeEvent) deserialize(eventBytes)).hops;
+				}
+				return sum;
+			}
+		}, perEvent);
+	}
+
+	private static byte[] serialize(Object object) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(object);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+	}
+
+	private static Object deserialize(byte[] bytes) {
+		try {
+			return new ObjectInputStream(new ByteArrayInputStream(bytes))
+					.readObject();
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		} catch (ClassNotFoundException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	private static byte[] frame(Packet packet) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			packet.writeTo(out);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+	}
+}
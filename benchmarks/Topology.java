@@ -0,0 +1,99 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Class Topology is a synthetic set of GPS offices for the benchmarks. The
+ * offices are spread over a square whose side grows with the square root of
+ * their number, so the typical distance between neighbors stays about the
+ * same at every size. The layout is uniform, or clustered around a number of
+ * Gaussian centers.
+ */
+public class Topology {
+
+	/**
+	 * How the offices are laid out.
+	 */
+	public static enum Layout {
+		UNIFORM, CLUSTERED
+	}
+
+	/**
+	 * Typical distance between neighboring offices, and the spatial index
+	 * cell size the offices use.
+	 */
+	public static final double SPACING = 10.0;
+
+	private static final int CLUSTERS = 20;
+
+	/**
+	 * Office names and coordinates.
+	 */
+	public final String[] names;
+	public final double[] x;
+	public final double[] y;
+
+	/**
+	 * Side of the square the offices are spread over.
+	 */
+	public final double side;
+
+	/**
+	 * Every office, in a spatial index.
+	 */
+	public final SpatialIndex index;
+
+	/**
+	 * Creates a new topology.
+	 *
+	 * @param layout
+	 *            Layout.
+	 * @param n
+	 *            Number of offices.
+	 * @param seed
+	 *            Seed of the random layout.
+	 */
+	public Topology(Layout layout, int n, long seed) {
+		Random random = new Random(seed);
+		names = new String[n];
+		x = new double[n];
+		y = new double[n];
+		side = Math.sqrt(n) * SPACING;
+		index = new SpatialIndex(SPACING);
+		double[] cx = new double[CLUSTERS];
+		double[] cy = new double[CLUSTERS];
+		for (int c = 0; c < CLUSTERS; c++) {
+			cx[c] = random.nextDouble() * side;
+			cy[c] = random.nextDouble() * side;
+		}
+		for (int i = 0; i < n; i++) {
+			names[i] = "office" + i;
+			if (layout == Layout.UNIFORM) {
+				x[i] = random.nextDouble() * side;
+				y[i] = random.nextDouble() * side;
+			} else {
+				int c = random.nextInt(CLUSTERS);
+				x[i] = cx[c] + random.nextGaussian() * side / 40;
+				y[i] = cy[c] + random.nextGaussian() * side / 40;
+			}
+			index.put(names[i], x[i], y[i]);
+		}
+	}
+
+	/**
+	 * Returns the neighbor table the given office would build.
+	 *
+	 * @param i
+	 *            Office index.
+	 * @param k
+	 *            Number of neighbors.
+	 */
+	public NeighborTable table(int i, int k) {
+		List<SpatialIndex.Entry> nearest = index.nearest(x[i], y[i], k,
+				names[i]);
+		return NeighborTable.of(nearest, 1L);
+	}
+
+	public String toString() {
+		return "n=" + names.length;
+	}
+}
@@ -0,0 +1,146 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Class TransportBenchmark measures how many packages per second a cluster of
+ * GPS offices carries over each transport, which are chosen with the
+ * GPSOffice.transport property:
+ *
+ * rmi: one RMI call per batch of packets and per acknowledgement.
+ *
+ * nio: binary frames over persistent connections; see class NioTransport.
+ *
+ * The offices run in this process but are bound as their RMI stubs, so every
+ * call between offices, and from the client, goes over a loopback socket as
+ * it would between hosts. The nio-local runs bind the offices themselves
+ * instead, as ClusterHarness does: the offices call each other directly and
+ * the client's listener is an exported object, not a stub, which the NIO
+ * transport has to turn into a stub when it writes a packet frame. The
+ * client keeps a fixed number of packages in
+ * flight, each from a random office to a random point on the grid of
+ * offices. GPSOffice.delay is 0 unless set, so that the transit delay does
+ * not hide the transport.
+ *
+ * Usage: java TransportBenchmark [offices...]
+ *
+ * TransportBenchmark.window sets the packages in flight (default 256);
+ * Bench.warmup and Bench.time the warm-up and measuring time.
+ */
+public class TransportBenchmark {
+
+	private static final int[] SIZES = { 10, 50 };
+	private static final double SPACING = 10.0;
+
+	private static final int WINDOW = Integer.getInteger(
+			"TransportBenchmark.window", 256);
+	private static final long WARMUP = Long.getLong("Bench.warmup", 1000L);
+	private static final long TIME = Long.getLong("Bench.time", 3000L);
+
+	/**
+	 * Class StubDirectory hands out the offices' RMI stubs instead of the
+	 * offices themselves.
+	 */
+	private static class StubDirectory extends InMemoryDirectory {
+		protected Remote wrap(String name, Remote object) {
+			try {
+				return RemoteObject.toStub(object);
+			} catch (NoSuchObjectException exc) {
+				throw new IllegalStateException(exc);
+			}
+		}
+	}
+
+	/**
+	 * Class Result is the outcome of one run.
+	 */
+	private static class Result {
+		double rate;
+		long lost;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (System.getProperty("GPSOffice.delay") == null) {
+			System.setProperty("GPSOffice.delay", "0");
+		}
+		for (int n : args.length == 0 ? SIZES : Bench.sizes(args)) {
+			run("rmi", n, true);
+			run("nio", n, true);
+			run("nio", n, false);
+		}
+		System.exit(0);
+	}
+
+	private static void run(String transport, int n, boolean stubs)
+			throws Exception {
+		System.setProperty("GPSOffice.transport", transport);
+		InMemoryDirectory directory = stubs ? new StubDirectory()
+				: new InMemoryDirectory();
+		List<GPSOffice> offices = new ArrayList<GPSOffice>(n);
+		int side = (int) Math.ceil(Math.sqrt(n));
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) {
+			names[i] = "office" + i;
+			offices.add(new GPSOffice(directory, names[i], (i % side)
+					* SPACING, (i / side) * SPACING, -1));
+		}
+		// Let the registry events settle the neighbor tables.
+		Thread.sleep(500L);
+		GPSClient client = new GPSClient(directory);
+
+		drive(client, names, side * SPACING, WARMUP);
+		Result result = drive(client, names, side * SPACING, TIME);
+		System.out.println(String.format(
+				"%-22s %-26s %14.1f ops/s  lost %d",
+				"transport", transport + (stubs ? "" : "-local") + " " + n
+						+ " offices", result.rate,
+				result.lost));
+
+		client.close();
+		for (GPSOffice office : offices) {
+			office.shutdown();
+		}
+		directory.close();
+	}
+
+	/**
+	 * Sends packages, keeping WINDOW in flight, for a time and waits for the
+	 * last of them.
+	 */
+	private static Result drive(GPSClient client, String[] names,
+			double extent, long millis) throws InterruptedException {
+		final Semaphore window = new Semaphore(WINDOW);
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong lost = new AtomicLong();
+		BiConsumer<NodeEvent, Throwable> done = new BiConsumer<NodeEvent, Throwable>() {
+			public void accept(NodeEvent event, Throwable exc) {
+				if (exc == null) {
+					delivered.incrementAndGet();
+				} else {
+					lost.incrementAndGet();
+				}
+				window.release();
+			}
+		};
+		Random random = new Random(42L);
+		long start = System.nanoTime();
+		long end = start + millis * 1000000L;
+		while (System.nanoTime() < end) {
+			window.acquire();
+			client.submit(names[random.nextInt(names.length)],
+					random.nextDouble() * extent,
+					random.nextDouble() * extent).whenComplete(done);
+		}
+		window.acquire(WINDOW);
+		Result result = new Result();
+		result.rate = delivered.get() * 1e9 / (System.nanoTime() - start);
+		result.lost = lost.get();
+		return result;
+	}
+}
@@ -0,0 +1,39 @@
+#!/bin/sh
+#
+# Compiles the GPS tracking system together with the benchmarks and runs one
+# benchmark program. The benchmarks are plain programs, not JMH benchmarks,
+# because every class is in the default package.
+#
+# Usage: benchmarks/run.sh <benchmark> [args...]
+#
+#   benchmarks/run.sh RoutingBenchmark 100 1000
+#   JAVA_OPTS="-DBench.time=5000" benchmarks/run.sh TransportBenchmark 10
+#
+# DS_JAR is the edu.rit.ds library jar, which is not in this repository
+# (default edu.rit.ds.jar in the repository root). Classes are compiled into
+# OUT (default benchmarks/out). JAVA_OPTS is passed to java, for the Bench.*,
+# GPSOffice.* and benchmark properties.
+
+set -e
+
+if [ $# -lt 1 ]; then
+	echo "Usage: $0 <benchmark> [args...]" >&2
+	exit 1
+fi
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+DS_JAR=${DS_JAR:-$ROOT/edu.rit.ds.jar}
+OUT=${OUT:-$ROOT/benchmarks/out}
+
+if [ ! -f "$DS_JAR" ]; then
+	echo "$0: edu.rit.ds library not found at $DS_JAR; set DS_JAR" >&2
+	exit 1
+fi
+
+mkdir -p "$OUT"
+javac -nowarn --release 8 -cp "$DS_JAR" -d "$OUT" \
+	"$ROOT"/*.java "$ROOT"/benchmarks/*.java
+
+BENCHMARK=$1
+shift
+exec java $JAVA_OPTS -cp "$OUT:$DS_JAR" "$BENCHMARK" "$@"